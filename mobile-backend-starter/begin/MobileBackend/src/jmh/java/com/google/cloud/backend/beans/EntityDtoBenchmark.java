@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.beans;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the conversions between {@link EntityDto} and {@link Entity} that run for every
+ * entity saved or returned by the backend.
+ *
+ * Entities have the given number of user properties. One in five is a nested Map and one in five
+ * is a List, which are stored as JSON by Gson. The others are strings, numbers and booleans.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EntityDtoBenchmark {
+
+  @Param({ "10", "50", "200" })
+  private int propertyCount;
+
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper();
+
+  private EntityDto entityDto;
+
+  private Entity entity;
+
+  @Setup
+  public void setUp() {
+    helper.setUp();
+    entityDto = createEntityDto(propertyCount);
+    entity = new Entity(entityDto.getKindName(), entityDto.getId());
+    entityDto.copyPropValuesToEntity(entity);
+  }
+
+  @TearDown
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Benchmark
+  public EntityDto createFromEntity() {
+    return EntityDto.createFromEntity(entity);
+  }
+
+  @Benchmark
+  public Entity copyPropValuesToEntity() {
+    Entity e = new Entity(entity.getKey());
+    entityDto.copyPropValuesToEntity(e);
+    return e;
+  }
+
+  private static EntityDto createEntityDto(int propertyCount) {
+    EntityDto cd = new EntityDto();
+    cd.setId("benchmark-entity");
+    cd.setKindName("Guestbook");
+    cd.setCreatedAt(new Date());
+    cd.setUpdatedAt(new Date());
+    cd.setCreatedBy("user@example.com");
+    cd.setUpdatedBy("user@example.com");
+    cd.setOwner("user@example.com");
+
+    Map<String, Object> values = new HashMap<String, Object>();
+    for (int i = 0; i < propertyCount; i++) {
+      switch (i % 5) {
+      case 0:
+        values.put("map" + i, createNestedMap(i));
+        break;
+      case 1:
+        values.put("list" + i, createList(i, 10));
+        break;
+      case 2:
+        values.put("number" + i, i * 1.5);
+        break;
+      case 3:
+        values.put("flag" + i, i % 2 == 0);
+        break;
+      default:
+        values.put("message" + i, "The quick brown fox jumps over the lazy dog #" + i);
+        break;
+      }
+    }
+    cd.setProperties(values);
+    return cd;
+  }
+
+  private static Map<String, Object> createNestedMap(int seed) {
+    Map<String, Object> m = new HashMap<String, Object>();
+    m.put("name", "item" + seed);
+    m.put("score", seed * 0.25);
+    m.put("tags", createList(seed, 5));
+    Map<String, Object> location = new HashMap<String, Object>();
+    location.put("lat", 35.6895 + seed);
+    location.put("lng", 139.6917 - seed);
+    m.put("location", location);
+    return m;
+  }
+
+  private static List<Object> createList(int seed, int size) {
+    List<Object> l = new ArrayList<Object>();
+    for (int i = 0; i < size; i++) {
+      l.add("value" + seed + "-" + i);
+    }
+    return l;
+  }
+}
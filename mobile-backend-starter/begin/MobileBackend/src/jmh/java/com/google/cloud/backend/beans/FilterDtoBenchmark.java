@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.beans;
+
+import com.google.appengine.api.datastore.Query.Filter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the translation of a {@link FilterDto} tree for list and subscribe calls.
+ *
+ * The filter is an AND of an equality on a string, a range on a JSON date and an IN with the given
+ * number of values, which is the shape of the filters of the slowest list calls.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FilterDtoBenchmark {
+
+  @Param({ "1", "10", "30" })
+  private int inValueCount;
+
+  private FilterDto filter;
+
+  @Setup
+  public void setUp() {
+    List<Object> inValues = new ArrayList<Object>();
+    inValues.add("author");
+    for (int i = 0; i < inValueCount; i++) {
+      inValues.add("user" + i + "@example.com");
+    }
+    filter = createCompositeFilter(FilterDto.Op.AND,
+        createPredicate(FilterDto.Op.EQ, "category", "news"),
+        createPredicate(FilterDto.Op.GT, EntityDto.PROP_CREATED_AT, "2014-06-25T12:34:56.789Z"),
+        createPredicate(FilterDto.Op.IN, inValues.toArray()));
+  }
+
+  @Benchmark
+  public String buildProsSearchQuery() {
+    return filter.buildProsSearchQuery();
+  }
+
+  @Benchmark
+  public Object buildProsSearchSchema() {
+    return filter.buildProsSearchSchema();
+  }
+
+  @Benchmark
+  public Filter getDatastoreFilter() {
+    return filter.getDatastoreFilter();
+  }
+
+  @Benchmark
+  public CompiledFilter compile() {
+    return filter.compile();
+  }
+
+  private static FilterDto createPredicate(FilterDto.Op op, Object... values) {
+    FilterDto f = new FilterDto();
+    f.setOperator(op);
+    f.setValues(new ArrayList<Object>(Arrays.asList(values)));
+    return f;
+  }
+
+  private static FilterDto createCompositeFilter(FilterDto.Op op, FilterDto... subfilters) {
+    FilterDto f = new FilterDto();
+    f.setOperator(op);
+    f.setSubfilters(new ArrayList<FilterDto>(Arrays.asList(subfilters)));
+    return f;
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.config;
+
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the verification of a valid XSRF token, which runs for every request of the
+ * configuration page. The token is verified for a signed in user of the local User service.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class XSRFTokenUtilityBenchmark {
+
+  private static final String SECRET_KEY = "benchmark-secret-key-0123456789";
+
+  private static final String ACTION = "updateConfiguration";
+
+  // the User service environment is per thread, so it is set up on the benchmark thread
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+      new LocalUserServiceTestConfig()).setEnvIsLoggedIn(true)
+      .setEnvEmail("user@example.com").setEnvAuthDomain("example.com");
+
+  private String token;
+
+  @Setup
+  public void setUp() throws NoSuchAlgorithmException, IOException {
+    helper.setUp();
+    token = XSRFTokenUtility.getToken(SECRET_KEY, ACTION);
+  }
+
+  @TearDown
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Benchmark
+  public boolean verifyToken() throws NoSuchAlgorithmException, IOException {
+    return XSRFTokenUtility.verifyToken(SECRET_KEY, ACTION, token);
+  }
+}
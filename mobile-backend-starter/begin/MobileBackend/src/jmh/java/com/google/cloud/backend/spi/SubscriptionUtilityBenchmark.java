@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.spi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the extraction of the device registration id from the subscription ids, which runs
+ * for every matched subscription and every cleaned up device.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SubscriptionUtilityBenchmark {
+
+  // GCM registration ids are about 160 characters long, APNs device tokens 64 hex digits
+  private final String androidSubId = SubscriptionUtility.constructSubId(
+      "APA91bHun4MxP5egoKMwt2KZFBaFUH-1RYqx2Lz2p8PzZsbYKrLtq7JhRqkf0yOJ0tFwpTmhCDF2jFTgYxN8gyW"
+          + "0VLhQIFw7gCxByDvFV4M9L0n3X9hQpmwV5E1sVv2cTz1U4oEWxqMkRgmL1CtaZQb8jEUQGFZoXvG6wT0",
+      "Guestbook-1403699696789");
+
+  private final String iosSubId = SubscriptionUtility.constructSubId(
+      "ios_1f0c4a3d2b7e9a8c6d5e4f3a2b1c0d9e8f7a6b5c4d3e2f1a0b9c8d7e6f5a4b3c",
+      "Guestbook-1403699696789");
+
+  @Benchmark
+  public String extractRegIdAndroid() {
+    return SubscriptionUtility.extractRegId(androidSubId);
+  }
+
+  @Benchmark
+  public String extractRegIdIos() {
+    return SubscriptionUtility.extractRegId(iosSubId);
+  }
+}
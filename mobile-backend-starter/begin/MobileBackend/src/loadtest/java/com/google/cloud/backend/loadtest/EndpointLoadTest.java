@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.loadtest;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalProspectiveSearchServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig;
+import com.google.apphosting.api.ApiProxy;
+import com.google.cloud.backend.beans.EntityDto;
+import com.google.cloud.backend.beans.EntityListDto;
+import com.google.cloud.backend.beans.FilterDto;
+import com.google.cloud.backend.beans.QueryDto;
+import com.google.cloud.backend.beans.QueryDto.Scope;
+import com.google.cloud.backend.config.BackendConfigManager;
+import com.google.cloud.backend.config.BackendConfigManager.AuthMode;
+import com.google.cloud.backend.spi.EndpointV1;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load test of {@link EndpointV1} that runs in a single JVM against the in-memory service stubs of
+ * the App Engine testing library, with no network and no deployment.
+ *
+ * Each simulated user repeatedly saves a batch of CloudEntities with insertAll, reads one of them
+ * with get and all of them with getAll, runs a list query, and deletes the batch with deleteAll.
+ * The throughput and the latency percentiles of each operation are reported at the end.
+ *
+ * The load is configured with system properties:
+ *
+ * - loadtest.users: number of concurrent simulated users (default 10)
+ *
+ * - loadtest.durationSec: duration of the measurement (default 30)
+ *
+ * - loadtest.warmupSec: duration of the warmup, whose latencies are discarded (default 5)
+ *
+ * - loadtest.batchSize: number of CloudEntities saved by each insertAll (default 10)
+ *
+ * - loadtest.propertyCount: number of properties of each CloudEntity (default 10)
+ *
+ * - loadtest.valueLength: length of the string property values (default 100)
+ *
+ * - loadtest.filterMix: relative weights of the list filters, e.g. "none:1,eq:1,in:1,range:1".
+ * "eq" is an equality on a string, "in" an IN with 10 values and "range" a GE on a number.
+ */
+public class EndpointLoadTest {
+
+  private static final String KIND_NAME = "LoadTest";
+
+  private static final int CATEGORY_COUNT = 20;
+
+  private static final int LIST_LIMIT = 20;
+
+  private static final String[] OPERATIONS = { "insertAll", "get", "getAll", "list", "deleteAll" };
+
+  private static final int USERS = Integer.getInteger("loadtest.users", 10);
+
+  private static final int DURATION_SEC = Integer.getInteger("loadtest.durationSec", 30);
+
+  private static final int WARMUP_SEC = Integer.getInteger("loadtest.warmupSec", 5);
+
+  private static final int BATCH_SIZE = Integer.getInteger("loadtest.batchSize", 10);
+
+  private static final int PROPERTY_COUNT = Integer.getInteger("loadtest.propertyCount", 10);
+
+  private static final int VALUE_LENGTH = Integer.getInteger("loadtest.valueLength", 100);
+
+  private static final String FILTER_MIX = System.getProperty("loadtest.filterMix",
+      "none:1,eq:1,in:1,range:1");
+
+  private final LoadTestHelper helper = new LoadTestHelper();
+
+  private final EndpointV1 endpoint = new EndpointV1();
+
+  private final List<String> filterTypes = parseFilterMix(FILTER_MIX);
+
+  private final Map<String, LatencyRecorder> recorders = new HashMap<String, LatencyRecorder>();
+
+  private final AtomicInteger errorCount = new AtomicInteger();
+
+  private volatile boolean isMeasuring;
+
+  private volatile boolean isStopped;
+
+  public static void main(String[] args) throws InterruptedException {
+    new EndpointLoadTest().run();
+  }
+
+  private void run() throws InterruptedException {
+    helper.setUp();
+    try {
+      openBackend();
+      for (String op : OPERATIONS) {
+        recorders.put(op, new LatencyRecorder());
+      }
+
+      // start the users
+      System.out.println("Running " + USERS + " users for " + WARMUP_SEC + "s of warmup and "
+          + DURATION_SEC + "s of measurement. Batch size: " + BATCH_SIZE + ", properties: "
+          + PROPERTY_COUNT + ", value length: " + VALUE_LENGTH + ", filter mix: " + FILTER_MIX);
+      final CountDownLatch finished = new CountDownLatch(USERS);
+      for (int i = 0; i < USERS; i++) {
+        final ApiProxy.Environment env = helper.newThreadEnvironment();
+        final User user = new User("user" + i + "@example.com", "example.com");
+        final Random random = new Random(i);
+        new Thread("user-" + i) {
+          @Override
+          public void run() {
+            ApiProxy.setEnvironmentForCurrentThread(env);
+            try {
+              while (!isStopped) {
+                runUserIteration(user, random);
+              }
+            } finally {
+              ApiProxy.clearEnvironmentForCurrentThread();
+              finished.countDown();
+            }
+          }
+        }.start();
+      }
+
+      // warm up, then measure
+      Thread.sleep(TimeUnit.SECONDS.toMillis(WARMUP_SEC));
+      isMeasuring = true;
+      long start = System.nanoTime();
+      Thread.sleep(TimeUnit.SECONDS.toMillis(DURATION_SEC));
+      isMeasuring = false;
+      long elapsedNanos = System.nanoTime() - start;
+      isStopped = true;
+      finished.await();
+
+      printReport(elapsedNanos);
+    } finally {
+      helper.tearDown();
+    }
+  }
+
+  // the backend is LOCKED by default. Save an open configuration before the backend creates the
+  // default one, as an administrator would on the configuration page.
+  private void openBackend() {
+    Entity config = new Entity(BackendConfigManager.CONFIGURATION_ENTITY_KIND, "Current");
+    config.setProperty("authMode", AuthMode.OPEN.name());
+    config.setProperty("pushEnabled", false);
+    DatastoreServiceFactory.getDatastoreService().put(config);
+  }
+
+  private void runUserIteration(User user, Random random) {
+    try {
+      // insertAll
+      EntityListDto cdl = new EntityListDto();
+      for (int i = 0; i < BATCH_SIZE; i++) {
+        cdl.add(createEntityDto(random));
+      }
+      long t = System.nanoTime();
+      cdl = endpoint.insertAll(cdl, user);
+      record("insertAll", t);
+
+      // get
+      EntityDto cd = cdl.getEntries().get(random.nextInt(cdl.getEntries().size()));
+      t = System.nanoTime();
+      endpoint.get(KIND_NAME, cd.getId(), user);
+      record("get", t);
+
+      // getAll
+      t = System.nanoTime();
+      endpoint.getAll(createIdList(cdl), user);
+      record("getAll", t);
+
+      // list
+      QueryDto queryDto = createQueryDto(random);
+      t = System.nanoTime();
+      endpoint.list(queryDto, user);
+      record("list", t);
+
+      // deleteAll
+      t = System.nanoTime();
+      endpoint.deleteAll(createIdList(cdl), user);
+      record("deleteAll", t);
+    } catch (Exception e) {
+      if (errorCount.getAndIncrement() == 0) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private void record(String op, long startNanos) {
+    if (isMeasuring) {
+      recorders.get(op).record(System.nanoTime() - startNanos);
+    }
+  }
+
+  private EntityDto createEntityDto(Random random) {
+    Map<String, Object> values = new HashMap<String, Object>();
+    values.put("category", "category" + random.nextInt(CATEGORY_COUNT));
+    values.put("score", (double) random.nextInt(1000));
+    for (int i = values.size(); i < PROPERTY_COUNT; i++) {
+      values.put("prop" + i, createString(random, VALUE_LENGTH));
+    }
+    EntityDto cd = new EntityDto();
+    cd.setKindName(KIND_NAME);
+    cd.setProperties(values);
+    return cd;
+  }
+
+  private EntityListDto createIdList(EntityListDto saved) {
+    EntityListDto cdl = new EntityListDto();
+    for (EntityDto saveCd : saved.getEntries()) {
+      EntityDto cd = new EntityDto();
+      cd.setKindName(KIND_NAME);
+      cd.setId(saveCd.getId());
+      cdl.add(cd);
+    }
+    return cdl;
+  }
+
+  private QueryDto createQueryDto(Random random) {
+    QueryDto queryDto = new QueryDto();
+    queryDto.setKindName(KIND_NAME);
+    queryDto.setScope(Scope.PAST);
+    queryDto.setLimit(LIST_LIMIT);
+
+    String filterType = filterTypes.get(random.nextInt(filterTypes.size()));
+    if (filterType.equals("eq")) {
+      queryDto.setFilterDto(createFilterDto(FilterDto.Op.EQ, "category",
+          "category" + random.nextInt(CATEGORY_COUNT)));
+    } else if (filterType.equals("in")) {
+      List<Object> values = new ArrayList<Object>();
+      values.add("category");
+      for (int i = 0; i < 10; i++) {
+        values.add("category" + random.nextInt(CATEGORY_COUNT));
+      }
+      queryDto.setFilterDto(createFilterDto(FilterDto.Op.IN, values.toArray()));
+    } else if (filterType.equals("range")) {
+      queryDto.setFilterDto(createFilterDto(FilterDto.Op.GE, "score",
+          (double) random.nextInt(1000)));
+    }
+    return queryDto;
+  }
+
+  private FilterDto createFilterDto(FilterDto.Op op, Object... values) {
+    FilterDto f = new FilterDto();
+    f.setOperator(op);
+    f.setValues(new ArrayList<Object>(Arrays.asList(values)));
+    return f;
+  }
+
+  private String createString(Random random, int length) {
+    StringBuilder sb = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      sb.append((char) ('a' + random.nextInt(26)));
+    }
+    return sb.toString();
+  }
+
+  // parses "type:weight,..." into a list where each type appears weight times
+  private static List<String> parseFilterMix(String filterMix) {
+    List<String> types = new ArrayList<String>();
+    for (String entry : filterMix.split(",")) {
+      String[] parts = entry.trim().split(":");
+      String type = parts[0];
+      if (!Arrays.asList("none", "eq", "in", "range").contains(type)) {
+        throw new IllegalArgumentException("Unknown filter type in loadtest.filterMix: " + type);
+      }
+      int weight = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+      for (int i = 0; i < weight; i++) {
+        types.add(type);
+      }
+    }
+    if (types.isEmpty()) {
+      throw new IllegalArgumentException("loadtest.filterMix has no filter type");
+    }
+    return types;
+  }
+
+  private void printReport(long elapsedNanos) {
+    double elapsedSec = elapsedNanos / 1e9;
+    System.out.println();
+    System.out.println(String.format("%-10s %10s %10s %10s %10s %10s", "operation", "count",
+        "ops/s", "p50 ms", "p95 ms", "p99 ms"));
+    for (String op : OPERATIONS) {
+      long[] latencies = recorders.get(op).getSortedLatencies();
+      System.out.println(String.format("%-10s %10d %10.1f %10.2f %10.2f %10.2f", op,
+          latencies.length, latencies.length / elapsedSec, getPercentileMillis(latencies, 0.50),
+          getPercentileMillis(latencies, 0.95), getPercentileMillis(latencies, 0.99)));
+    }
+    System.out.println("errors: " + errorCount.get());
+  }
+
+  private double getPercentileMillis(long[] sortedLatencies, double percentile) {
+    if (sortedLatencies.length == 0) {
+      return 0;
+    }
+    int i = (int) Math.ceil(percentile * sortedLatencies.length) - 1;
+    return sortedLatencies[Math.max(i, 0)] / 1e6;
+  }
+
+  /**
+   * Collects the latencies of an operation from all the users.
+   */
+  private static class LatencyRecorder {
+
+    private long[] latencies = new long[1024];
+
+    private int count;
+
+    synchronized void record(long latencyNanos) {
+      if (count == latencies.length) {
+        latencies = Arrays.copyOf(latencies, count * 2);
+      }
+      latencies[count++] = latencyNanos;
+    }
+
+    synchronized long[] getSortedLatencies() {
+      long[] sorted = Arrays.copyOf(latencies, count);
+      Arrays.sort(sorted);
+      return sorted;
+    }
+  }
+
+  /**
+   * Sets up the service stubs, and gives each user thread its own API environment.
+   */
+  private static class LoadTestHelper extends LocalServiceTestHelper {
+
+    LoadTestHelper() {
+      super(new LocalDatastoreServiceTestConfig().setNoStorage(true)
+          .setDefaultHighRepJobPolicyUnappliedJobPercentage(0),
+          new LocalMemcacheServiceTestConfig(),
+          new LocalTaskQueueTestConfig().setQueueXmlPath("src/main/webapp/WEB-INF/queue.xml")
+              .setDisableAutoTaskExecution(true),
+          new LocalProspectiveSearchServiceTestConfig(),
+          new LocalUserServiceTestConfig());
+    }
+
+    ApiProxy.Environment newThreadEnvironment() {
+      return newEnvironment();
+    }
+  }
+}
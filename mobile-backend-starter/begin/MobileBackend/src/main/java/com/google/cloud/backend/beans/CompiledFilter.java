@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.beans;
+
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.prospectivesearch.FieldType;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The translations of a {@link FilterDto} tree for Datastore and Prospective Search. Instances are
+ * immutable and shared by all the equivalent filters, see {@link FilterDto#compile()}.
+ */
+public final class CompiledFilter {
+
+  private final Filter datastoreFilter;
+
+  private final String prosSearchQuery;
+
+  private final Map<String, FieldType> prosSearchSchema;
+
+  CompiledFilter(Filter datastoreFilter, String prosSearchQuery,
+      Map<String, FieldType> prosSearchSchema) {
+    this.datastoreFilter = datastoreFilter;
+    this.prosSearchQuery = prosSearchQuery;
+    this.prosSearchSchema = Collections.unmodifiableMap(prosSearchSchema);
+  }
+
+  /**
+   * Returns the Datastore filter.
+   */
+  public Filter getDatastoreFilter() {
+    return datastoreFilter;
+  }
+
+  /**
+   * Returns the Prospective Search query string.
+   */
+  public String getProsSearchQuery() {
+    return prosSearchQuery;
+  }
+
+  /**
+   * Returns the Prospective Search schema, which cannot be modified.
+   */
+  public Map<String, FieldType> getProsSearchSchema() {
+    return prosSearchSchema;
+  }
+}
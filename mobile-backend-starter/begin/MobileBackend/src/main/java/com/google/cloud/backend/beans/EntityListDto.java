@@ -26,6 +26,8 @@ public class EntityListDto {
 
   private List<EntityDto> entries = new LinkedList<EntityDto>();
 
+  private String endCursor;
+
   public List<EntityDto> getEntries() {
     return entries;
   }
@@ -34,6 +36,19 @@ public class EntityListDto {
     this.entries = entries;
   }
 
+  /**
+   * Returns the opaque cursor that points after the last entry of a query result, or null if
+   * there are no more results. Pass it as {@link QueryDto#setStartCursor(String)} to get the
+   * next page.
+   */
+  public String getEndCursor() {
+    return endCursor;
+  }
+
+  public void setEndCursor(String endCursor) {
+    this.endCursor = endCursor;
+  }
+
   /**
    * Returns a List of Ids of all {@link EntityDto}s.
    * 
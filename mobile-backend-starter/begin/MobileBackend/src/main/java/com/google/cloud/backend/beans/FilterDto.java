@@ -17,15 +17,16 @@ import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
 import com.google.appengine.api.datastore.Query.Filter;
 import com.google.appengine.api.prospectivesearch.FieldType;
+import com.google.cloud.backend.config.LocalCache;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-
-import javax.xml.datatype.DatatypeConfigurationException;
-import javax.xml.datatype.DatatypeFactory;
+import java.util.TimeZone;
 
 /**
  * Represents an AST (abstract syntax tree) made of filters that represents a
@@ -49,15 +50,15 @@ import javax.xml.datatype.DatatypeFactory;
  */
 public class FilterDto {
 
-  private static final DatatypeFactory datatypeFactory;
+  private static final int MAX_COMPILED_FILTERS = 1000;
 
-  static {
-    try {
-      datatypeFactory = DatatypeFactory.newInstance();
-    } catch (DatatypeConfigurationException e) {
-      throw new RuntimeException(e);
-    }
-  }
+  private static final long COMPILED_FILTER_TTL_MS = 60 * 60 * 1000;
+
+  private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+
+  // compiled filters by canonical string, shared by the requests served by this instance
+  private static final LocalCache<String, CompiledFilter> compiledFilters =
+      new LocalCache<String, CompiledFilter>(MAX_COMPILED_FILTERS, COMPILED_FILTER_TTL_MS);
 
   /**
    * Filter operations
@@ -88,6 +89,22 @@ public class FilterDto {
     this.values = values;
   }
 
+  /**
+   * Returns the translations of this filter for Datastore and Prospective Search. They are built
+   * once per instance for all the equivalent filters, i.e. the filters that have the same
+   * {@link #buildCanonicalString()}, and cached in a bounded LRU cache.
+   */
+  public CompiledFilter compile() {
+    String canonicalString = buildCanonicalString();
+    CompiledFilter compiled = compiledFilters.get(canonicalString);
+    if (compiled == null) {
+      compiled = new CompiledFilter(getDatastoreFilter(), buildProsSearchQuery(),
+          buildProsSearchSchema());
+      compiledFilters.put(canonicalString, compiled);
+    }
+    return compiled;
+  }
+
   /**
    * Converts the tree of {@link FilterDto}s to a tree of {@link FilterDto}s.
    */
@@ -121,6 +138,53 @@ public class FilterDto {
     return null;
   }
 
+  /**
+   * Splits this filter into Datastore filters whose union is equivalent to it, so that each of
+   * them can be run as a separate query. Supports IN and OR, and AND with a single IN or OR
+   * subfilter, which is distributed over the disjuncts.
+   *
+   * @return the disjunct filters, or null if this filter is not a disjunction.
+   */
+  public List<Filter> getDatastoreDisjuncts() {
+    List<Filter> disjuncts = new ArrayList<Filter>();
+    switch (this.operator) {
+    case IN:
+      for (int i = 1; i < values.size(); i++) {
+        disjuncts.add(new Query.FilterPredicate(getPropName(), Query.FilterOperator.EQUAL,
+            values.get(i)));
+      }
+      return disjuncts;
+    case OR:
+      return getSubfilters(subfilters);
+    case AND:
+      // find the single disjunction, and AND each of its disjuncts with the other subfilters
+      FilterDto disjunction = null;
+      List<Filter> others = new ArrayList<Filter>();
+      for (FilterDto cb : subfilters) {
+        if (cb.operator == Op.IN || cb.operator == Op.OR) {
+          if (disjunction != null) {
+            return null;
+          }
+          disjunction = cb;
+        } else {
+          others.add(cb.getDatastoreFilter());
+        }
+      }
+      if (disjunction == null) {
+        return null;
+      }
+      for (Filter d : disjunction.getDatastoreDisjuncts()) {
+        List<Filter> conjuncts = new ArrayList<Filter>(others);
+        conjuncts.add(d);
+        disjuncts.add(conjuncts.size() == 1 ? d
+            : new Query.CompositeFilter(CompositeFilterOperator.AND, conjuncts));
+      }
+      return disjuncts;
+    default:
+      return null;
+    }
+  }
+
   private String getPropName() {
     return (String) values.get(0);
   }
@@ -153,6 +217,52 @@ public class FilterDto {
     this.subfilters = subfilters;
   }
 
+  /**
+   * Returns a string that identifies this filter regardless of the order of the subfilters of AND
+   * and OR, and of the values of IN. Equivalent filters have the same canonical string.
+   */
+  public String buildCanonicalString() {
+    List<String> operands = new ArrayList<String>();
+    switch (this.operator) {
+    case AND:
+    case OR:
+      for (FilterDto f : this.subfilters) {
+        operands.add(f.buildCanonicalString());
+      }
+      Collections.sort(operands);
+      break;
+    case IN:
+      for (int i = 1; i < this.values.size(); i++) {
+        operands.add(buildCanonicalValue(this.values.get(i)));
+      }
+      Collections.sort(operands);
+      operands.add(0, getPropName());
+      break;
+    default:
+      operands.add(getPropName());
+      operands.add(buildCanonicalValue(this.values.get(1)));
+      break;
+    }
+
+    StringBuilder sb = new StringBuilder();
+    sb.append(this.operator).append("(");
+    for (int i = 0; i < operands.size(); i++) {
+      if (i > 0) {
+        sb.append(",");
+      }
+      sb.append(operands.get(i));
+    }
+    return sb.append(")").toString();
+  }
+
+  // the type is part of the value, so that 1 and "1" are different operands
+  private String buildCanonicalValue(Object value) {
+    if (value == null) {
+      return "null";
+    }
+    return value.getClass().getSimpleName() + ":" + String.valueOf(value).length() + ":" + value;
+  }
+
   /**
    * Returns Prospective Search query string that is converted form this filter.
    */
@@ -270,18 +380,115 @@ public class FilterDto {
 
   // converts JSON date to epoch time value
   // return 0 if it can't be converted
+  //
+  // Parses the xsd:dateTime and xsd:date forms of ISO 8601 by hand, i.e.
+  // yyyy-MM-dd['T'HH:mm:ss[.SSS]][Z|(+|-)HH:mm]. Dates without time zone are in the default time
+  // zone of the JVM.
   private long convertJSONDateToEpochTime(String date) {
-
-    // fast check if date could be a JSON date time
-    if (date == null || !date.matches("^\\d.+[Z\\d]$")) {
+    int len = date == null ? 0 : date.length();
+    if (len < 10 || date.charAt(4) != '-' || date.charAt(7) != '-') {
       return 0;
     }
 
-    // try to convert to epoch time
-    try {
-      return datatypeFactory.newXMLGregorianCalendar(date).toGregorianCalendar().getTimeInMillis();
-    } catch (Throwable th) {
+    // date
+    int year = parseDigits(date, 0, 4);
+    int month = parseDigits(date, 5, 7);
+    int day = parseDigits(date, 8, 10);
+    if (year < 1 || month < 1 || month > 12 || day < 1 || day > getDaysInMonth(year, month)) {
       return 0;
     }
+    long t = getDaysSinceEpoch(year, month, day) * MILLIS_PER_DAY;
+
+    // time
+    int i = 10;
+    if (i < len && date.charAt(i) == 'T') {
+      if (len < i + 9 || date.charAt(i + 3) != ':' || date.charAt(i + 6) != ':') {
+        return 0;
+      }
+      int hour = parseDigits(date, i + 1, i + 3);
+      int minute = parseDigits(date, i + 4, i + 6);
+      int second = parseDigits(date, i + 7, i + 9);
+      i += 9;
+
+      // fraction of second, truncated to milliseconds
+      int millis = 0;
+      if (i < len && date.charAt(i) == '.') {
+        int start = ++i;
+        while (i < len && date.charAt(i) >= '0' && date.charAt(i) <= '9') {
+          if (i - start < 3) {
+            millis = millis * 10 + date.charAt(i) - '0';
+          }
+          i++;
+        }
+        if (i == start) {
+          return 0;
+        }
+        for (int n = i - start; n < 3; n++) {
+          millis *= 10;
+        }
+      }
+      if (hour < 0 || hour > 24 || minute < 0 || minute > 59 || second < 0 || second > 59
+          || (hour == 24 && minute + second + millis > 0)) {
+        return 0;
+      }
+      t += ((hour * 60L + minute) * 60 + second) * 1000 + millis;
+    }
+
+    // time zone
+    if (i == len) {
+      return t - TimeZone.getDefault().getOffset(t);
+    }
+    char c = date.charAt(i);
+    if (c == 'Z' && i + 1 == len) {
+      return t;
+    }
+    if ((c == '+' || c == '-') && i + 6 == len && date.charAt(i + 3) == ':') {
+      int offsetHour = parseDigits(date, i + 1, i + 3);
+      int offsetMinute = parseDigits(date, i + 4, i + 6);
+      if (offsetHour < 0 || offsetHour > 14 || offsetMinute < 0 || offsetMinute > 59) {
+        return 0;
+      }
+      long offset = (offsetHour * 60L + offsetMinute) * 60 * 1000;
+      return c == '+' ? t - offset : t + offset;
+    }
+    return 0;
+  }
+
+  // returns the value of the digits in [start, end), or -1 if there is another character
+  private static int parseDigits(String s, int start, int end) {
+    int value = 0;
+    for (int i = start; i < end; i++) {
+      char c = s.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      value = value * 10 + c - '0';
+    }
+    return value;
+  }
+
+  private static int getDaysInMonth(int year, int month) {
+    switch (month) {
+    case 2:
+      boolean isLeapYear = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+      return isLeapYear ? 29 : 28;
+    case 4:
+    case 6:
+    case 9:
+    case 11:
+      return 30;
+    default:
+      return 31;
+    }
+  }
+
+  // number of days from 1970-01-01 in the proleptic Gregorian calendar
+  private static long getDaysSinceEpoch(int year, int month, int day) {
+    long y = month <= 2 ? year - 1 : year;
+    long era = y / 400; // year is positive
+    long yearOfEra = y - era * 400;
+    long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097 + dayOfEra - 719468;
   }
 }
@@ -16,6 +16,7 @@ package com.google.cloud.backend.beans;
 import com.google.appengine.api.prospectivesearch.FieldType;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -66,6 +67,10 @@ public class QueryDto {
 
   private Integer subscriptionDurationSec;
 
+  private String startCursor;
+
+  private List<String> projectedPropertyNames;
+
   public Integer getLimit() {
     return limit;
   }
@@ -142,7 +147,7 @@ public class QueryDto {
 
     // add conditions for the filters
     if (this.cbFilter != null) {
-      sb.append(" AND ").append(this.cbFilter.buildProsSearchQuery());
+      sb.append(" AND ").append(this.cbFilter.compile().getProsSearchQuery());
     }
     return sb.toString();
   }
@@ -160,7 +165,7 @@ public class QueryDto {
 
     // add schemas for properties in the filters
     if (this.cbFilter != null) {
-      m.putAll(this.cbFilter.buildProsSearchSchema());
+      m.putAll(this.cbFilter.compile().getProsSearchSchema());
     }
     return m;
   }
@@ -181,4 +186,29 @@ public class QueryDto {
     this.subscriptionDurationSec = subscriptionDurationSec;
   }
 
+  /**
+   * Returns the opaque cursor where this query resumes. It is the
+   * {@link EntityListDto#getEndCursor()} of the previous page, or null for the first page.
+   */
+  public String getStartCursor() {
+    return startCursor;
+  }
+
+  public void setStartCursor(String startCursor) {
+    this.startCursor = startCursor;
+  }
+
+  /**
+   * Returns the names of the properties returned by this query, or null to return whole entities.
+   * When set, the query runs as a Datastore projection query, so the properties must be indexed
+   * and must not be used in an equality filter.
+   */
+  public List<String> getProjectedPropertyNames() {
+    return projectedPropertyNames;
+  }
+
+  public void setProjectedPropertyNames(List<String> projectedPropertyNames) {
+    this.projectedPropertyNames = projectedPropertyNames;
+  }
+
 }
@@ -34,6 +34,7 @@ import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -59,6 +60,16 @@ public class BackendConfigManager {
 
   private static final String PER_APP_SECRET_KEY = "secretKey";
   private static final String CURRENT_CONFIGURATION = "Current";
+  private static final String MEMCACHE_KEY_CONFIG_VERSION =
+      CONFIGURATION_ENTITY_KIND + ":version";
+
+  // the snapshot of the configuration is checked against its version on Memcache at most this
+  // often
+  private static final long CONFIG_CHECK_INTERVAL_MS = TimeUnit.SECONDS.toMillis(
+      Integer.getInteger("mobilebackend.config.checkIntervalSec", 5));
+
+  // snapshot of the configuration, shared by all the BackendConfigManagers of this instance
+  private static volatile ConfigSnapshot snapshot;
 
   private final DatastoreService datastoreService;
   private final MemcacheService memcache;
@@ -108,12 +119,50 @@ public class BackendConfigManager {
   }
 
   /**
-   * Returns the current configuration of the backend.
+   * Returns the current configuration of the backend. The configuration is read from a snapshot
+   * in the memory of this instance, which is reloaded when its version stamp on Memcache changes,
+   * so that most calls make no RPC. The returned Entity is shared and must not be modified.
    * 
    * @result Entity that represents the current configurations of the backend.
    */
   protected Entity getConfiguration() {
 
+    // use the snapshot if it was checked recently
+    long now = System.currentTimeMillis();
+    ConfigSnapshot s = snapshot;
+    if (s != null && now - s.checkedAt < CONFIG_CHECK_INTERVAL_MS) {
+      return s.config;
+    }
+
+    // use it if no configuration was saved since it was taken. The version is read before the
+    // configuration, so that a concurrent save makes the new snapshot stale.
+    long version = getConfigVersion();
+    if (s != null && version >= 0 && s.version == version) {
+      snapshot = new ConfigSnapshot(s.config, version, now);
+      return s.config;
+    }
+    Entity config = loadConfiguration();
+    snapshot = new ConfigSnapshot(config, version, now);
+    return config;
+  }
+
+  // returns the version stamp of the configuration on Memcache, or -1 if it is not available.
+  // A stamp lost by Memcache restarts from the current time, so that it does not match an old
+  // snapshot.
+  private long getConfigVersion() {
+    Long version = memcache.increment(MEMCACHE_KEY_CONFIG_VERSION, 0,
+        System.currentTimeMillis());
+    return version == null ? -1 : version;
+  }
+
+  // changes the version stamp, so that all the instances reload the configuration
+  private void invalidateSnapshot() {
+    memcache.increment(MEMCACHE_KEY_CONFIG_VERSION, 1, System.currentTimeMillis());
+    snapshot = null;
+  }
+
+  private Entity loadConfiguration() {
+
     // check memcache
     Key key = getKey();
     Entity config = (Entity) memcache.get(getMemKeyForConfigEntity(key));
@@ -174,6 +223,7 @@ public class BackendConfigManager {
 
     datastoreService.put(configuration);
     memcache.put(getMemKeyForConfigEntity(key), configuration);
+    invalidateSnapshot();
 
     // Set endpoints auth config using client Ids that are not empty.
     List<String> clientIds = new ArrayList<String>();
@@ -216,10 +266,11 @@ public class BackendConfigManager {
    * Sets the last subscription delete time to current time.
    */
   public void setLastSubscriptionDeleteAllTime(Date time) {
-    Entity config = getConfiguration();
+    Entity config = getConfiguration().clone();
     config.setProperty(LAST_SUBSCRIPTION_DELETE_TIMESTAMP, time);
     this.datastoreService.put(config);
     this.memcache.put(getMemKeyForConfigEntity(getKey()), config);
+    invalidateSnapshot();
   }
 
   /**
@@ -294,6 +345,21 @@ public class BackendConfigManager {
     return (String) getConfiguration().getProperty(PER_APP_SECRET_KEY);
   }
 
+  private static class ConfigSnapshot {
+
+    private final Entity config;
+
+    private final long version;
+
+    private final long checkedAt;
+
+    private ConfigSnapshot(Entity config, long version, long checkedAt) {
+      this.config = config;
+      this.version = version;
+      this.checkedAt = checkedAt;
+    }
+  }
+
   /**
    * Extracts data without prefix since data from the front end is based64-encoded and prefixed with
    * "data:application/x-pkcs12;base64,".
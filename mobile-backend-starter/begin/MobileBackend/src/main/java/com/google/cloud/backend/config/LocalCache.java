@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.config;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded in-memory cache that evicts the least recently used entry when it is full, and drops
+ * entries that are older than a fixed time to live. The cache lives in the memory of a single
+ * App Engine instance, and is safe to use from concurrent requests.
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the cached values
+ */
+public class LocalCache<K, V> {
+
+  private final int maxEntries;
+
+  private final long ttlMillis;
+
+  private final LinkedHashMap<K, CacheEntry<V>> entries;
+
+  private long hitCount;
+
+  private long missCount;
+
+  /**
+   * Constructs a cache.
+   *
+   * @param maxEntries maximum number of entries held by the cache
+   * @param ttlMillis time to live of each entry in milliseconds
+   */
+  @SuppressWarnings("serial")
+  public LocalCache(int maxEntries, long ttlMillis) {
+    if (maxEntries <= 0 || ttlMillis <= 0) {
+      throw new IllegalArgumentException("maxEntries and ttlMillis must be positive");
+    }
+    this.maxEntries = maxEntries;
+    this.ttlMillis = ttlMillis;
+
+    // access-ordered map, so that the eldest entry is the least recently used one
+    this.entries = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+        return size() > LocalCache.this.maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Returns the value cached for the key, or null if there is no live entry for it.
+   */
+  public synchronized V get(K key) {
+    CacheEntry<V> entry = entries.get(key);
+    if (entry == null) {
+      missCount++;
+      return null;
+    }
+    if (entry.expiresAt < System.currentTimeMillis()) {
+      entries.remove(key);
+      missCount++;
+      return null;
+    }
+    hitCount++;
+    return entry.value;
+  }
+
+  /**
+   * Caches the value for the key, replacing any previous entry.
+   */
+  public synchronized void put(K key, V value) {
+    entries.put(key, new CacheEntry<V>(value, System.currentTimeMillis() + ttlMillis));
+  }
+
+  /**
+   * Removes the entry for the key, if any.
+   */
+  public synchronized void remove(K key) {
+    entries.remove(key);
+  }
+
+  /**
+   * Removes all the entries.
+   */
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  /**
+   * Returns the number of entries, including the ones that have expired but not been evicted yet.
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Returns the number of calls to {@link #get(Object)} that found a live entry.
+   */
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  /**
+   * Returns the number of calls to {@link #get(Object)} that found no live entry.
+   */
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  private static class CacheEntry<V> {
+
+    private final V value;
+
+    private final long expiresAt;
+
+    private CacheEntry(V value, long expiresAt) {
+      this.value = value;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
@@ -20,10 +20,12 @@ import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
 import java.util.logging.Logger;
 
@@ -69,24 +71,25 @@ public class DeviceCleanupServlet extends HttpServlet {
   }
 
   private void removeDevices(String[] devices) {
-    List<String> list = Arrays.asList(devices);
-    SubscriptionUtility.clearSubscriptionAndDeviceEntity(list);
-
     // Skip removing devices that have been registered very recently
     // as the request to remove them may be obsolete
     Calendar removalThreshold = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
     removalThreshold.add(Calendar.HOUR, -1 * FRESH_REGISTRATION_TIME_WINDOW_IN_HOURS);
     Date removalThresholdDate = removalThreshold.getTime();
 
-    DeviceSubscription deviceSubscription = new DeviceSubscription();
-    for (String deviceToken : devices) {
-      Entity deviceEntity = deviceSubscription.get(deviceToken);
+    Map<String, Entity> deviceEntities = new DeviceSubscription().getAll(Arrays.asList(devices));
+    List<Entity> devicesToRemove = new ArrayList<Entity>();
+    for (Entity deviceEntity : deviceEntities.values()) {
       Date timestamp = (Date) deviceEntity.getProperty(DeviceSubscription.PROPERTY_TIMESTAMP);
 
-      // Remove the registration if it hasn't been already removed or recently (re-)registered.
-      if (deviceEntity != null && removalThresholdDate.after(timestamp)) {
-        deviceSubscription.delete(deviceToken);
+      // Remove the registration if it hasn't been recently (re-)registered.
+      if (timestamp == null || removalThresholdDate.after(timestamp)) {
+        devicesToRemove.add(deviceEntity);
       }
     }
+
+    SubscriptionUtility.clearSubscriptionAndDeviceEntity(devicesToRemove, true);
+    log.info("Removed " + devicesToRemove.size() + " of " + devices.length + " devices, "
+        + (deviceEntities.size() - devicesToRemove.size()) + " were recently registered");
   }
 }
@@ -13,8 +13,8 @@
  */
 package com.google.cloud.backend.pushnotification;
 
-import com.google.appengine.api.ThreadManager;
-import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.FetchOptions;
@@ -23,12 +23,19 @@ import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Date;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,57 +46,144 @@ import javax.servlet.http.HttpServletResponse;
 /**
  * HttpServlet for removing no longer needed records of processed notifications.
  *
- * It is intended to be called by Push Task Queue or Cron requests that target a backend 
- * as the time needed to delete all obsolete records just once a day may exceed the HTTP time limit
- * for the front end instances.
+ * It is intended to be called by Cron requests that target a backend. The Cron request enqueues a
+ * task, and the clean up is done by a chain of Push Task Queue requests. Each of them reads the
+ * keys of obsolete records from a query cursor in large batches, deletes them with several
+ * concurrent async deletes for a limited time, then enqueues the next task with the cursor. If an
+ * instance dies, the task is retried from the cursor it was given. The number of deleted records
+ * and the throughput are logged by every task.
  */
 public class NotificationCleanupServlet extends HttpServlet {
   private static final long serialVersionUID = 1L;
   private static final Logger log =
       Logger.getLogger(NotificationCleanupServlet.class.getCanonicalName());
   private static final int HOURS_TO_KEEP_RECORDS_OF_PROCESSED_NOTIFICATIONS = 12;
-
+  private static final int KEYS_PER_QUERY_BATCH = 1000;
+  // maximum number of keys of a Datastore batch delete
+  private static final int KEYS_PER_DELETE = 500;
+  private static final int MAX_CONCURRENT_DELETES = 8;
+  private static final long MILLISECONDS_PER_TASK = 5 * 60 * 1000;
+  private static final AsyncDatastoreService asyncDatastore =
+      DatastoreServiceFactory.getAsyncDatastoreService();
+
+  /**
+   * Handles the Cron request by starting a clean up.
+   */
   @Override
   public void doGet(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    Calendar cutoffTime = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    cutoffTime.add(Calendar.HOUR, -HOURS_TO_KEEP_RECORDS_OF_PROCESSED_NOTIFICATIONS);
 
-    Thread thread = ThreadManager.createBackgroundThread(new Runnable() {
-      @Override
-      public void run() {
-        doCleanup();
-      }
-    });
-
-    thread.start();
+    log.log(Level.INFO, "Starting a job to clean up processed notification records");
+    enqueueCleanup(cutoffTime.getTime().getTime(), null, 0, System.currentTimeMillis());
   }
 
-  private void doCleanup() {
-    log.log(Level.INFO, "Starting a job to clean up processed notification records");
+  /**
+   * Handles a Push Task Queue request by continuing a clean up.
+   */
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    if (!Configuration.isRequestFromTaskQueue(req, res)) {
+      return;
+    }
+
+    long cutoffTime = Long.parseLong(req.getParameter("cutoffTime"));
+    String cursorParameter = req.getParameter("cursor");
+    Cursor cursor = cursorParameter == null ? null : Cursor.fromWebSafeString(cursorParameter);
+    long deletedCount = Long.parseLong(req.getParameter("deletedCount"));
+    long jobStartTime = Long.parseLong(req.getParameter("jobStartTime"));
+
+    doCleanup(cutoffTime, cursor, deletedCount, jobStartTime);
+  }
 
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-
-    Calendar cutoffTime = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
-    cutoffTime.add(Calendar.HOUR, -HOURS_TO_KEEP_RECORDS_OF_PROCESSED_NOTIFICATIONS);
+  private void doCleanup(long cutoffTime, Cursor cursor, long deletedCountBefore,
+      long jobStartTime) {
+    long taskStartTime = System.currentTimeMillis();
 
     Query query = new Query(Worker.PROCESSED_NOTIFICATION_TASKS_ENTITY_KIND)
-      .setFilter(new FilterPredicate("processedAt", FilterOperator.LESS_THAN, cutoffTime.getTime()))
+      .setFilter(new FilterPredicate("processedAt", FilterOperator.LESS_THAN, new Date(cutoffTime)))
       .setKeysOnly();
 
-    PreparedQuery preparedQuery = datastore.prepare(query);
-
-    // Delete in batches
-    List<Entity> entitiesToBeDeleted = null;
-    do {
-      entitiesToBeDeleted = preparedQuery.asList(FetchOptions.Builder.withLimit(5));
+    PreparedQuery preparedQuery = asyncDatastore.prepare(query);
+
+    // Read the keys in large batches, and keep up to MAX_CONCURRENT_DELETES deletes in flight
+    LinkedList<Future<Void>> deletes = new LinkedList<Future<Void>>();
+    long deletedCount = 0;
+    boolean done = false;
+    while (System.currentTimeMillis() - taskStartTime < MILLISECONDS_PER_TASK) {
+      FetchOptions fetchOptions = FetchOptions.Builder.withLimit(KEYS_PER_QUERY_BATCH)
+          .prefetchSize(KEYS_PER_QUERY_BATCH).chunkSize(KEYS_PER_QUERY_BATCH);
+      if (cursor != null) {
+        fetchOptions.startCursor(cursor);
+      }
+      QueryResultList<Entity> entities = preparedQuery.asQueryResultList(fetchOptions);
 
       List<Key> keys = new ArrayList<Key>();
-
-      for (Entity entity : entitiesToBeDeleted) {
+      for (Entity entity : entities) {
         keys.add(entity.getKey());
       }
+      for (int from = 0; from < keys.size(); from += KEYS_PER_DELETE) {
+        if (deletes.size() >= MAX_CONCURRENT_DELETES) {
+          waitForDelete(deletes.removeFirst());
+        }
+        deletes.add(asyncDatastore.delete(
+            keys.subList(from, Math.min(keys.size(), from + KEYS_PER_DELETE))));
+      }
+      deletedCount += keys.size();
+      cursor = entities.getCursor();
 
-      datastore.delete(keys);
-    } while (entitiesToBeDeleted.size() > 0);
+      if (keys.size() < KEYS_PER_QUERY_BATCH) {
+        done = true;
+        break;
+      }
+    }
+
+    // The next task only starts once all the deletes of this one are complete.
+    for (Future<Void> delete : deletes) {
+      waitForDelete(delete);
+    }
+
+    long taskMillis = Math.max(1, System.currentTimeMillis() - taskStartTime);
+    long totalDeletedCount = deletedCountBefore + deletedCount;
+    log.log(Level.INFO, "Deleted " + deletedCount + " processed notification records in "
+        + taskMillis + " ms (" + (deletedCount * 1000 / taskMillis) + " records/s), "
+        + totalDeletedCount + " since the job started");
+
+    if (done) {
+      long jobMillis = Math.max(1, System.currentTimeMillis() - jobStartTime);
+      log.log(Level.INFO, "Finished a job to clean up processed notification records: deleted "
+          + totalDeletedCount + " records in " + jobMillis + " ms ("
+          + (totalDeletedCount * 1000 / jobMillis) + " records/s)");
+    } else {
+      enqueueCleanup(cutoffTime, cursor, totalDeletedCount, jobStartTime);
+    }
+  }
+
+  // A failed delete fails the task, so that it is retried from its cursor
+  private void waitForDelete(Future<Void> delete) {
+    try {
+      delete.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
 
-    log.log(Level.INFO, "Finished a job to clean up processed notification records");
+  private void enqueueCleanup(long cutoffTime, Cursor cursor, long deletedCount,
+      long jobStartTime) {
+    TaskOptions task = TaskOptions.Builder.withMethod(TaskOptions.Method.POST)
+        .url("/admin/push/notifications/cleanup")
+        .param("cutoffTime", Long.toString(cutoffTime))
+        .param("deletedCount", Long.toString(deletedCount))
+        .param("jobStartTime", Long.toString(jobStartTime));
+    if (cursor != null) {
+      task.param("cursor", cursor.toWebSafeString());
+    }
+    QueueFactory.getQueue("notification-cleanup").add(task);
   }
 }
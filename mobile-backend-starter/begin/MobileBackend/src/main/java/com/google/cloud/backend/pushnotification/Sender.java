@@ -30,6 +30,7 @@ import javapns.notification.PushedNotification;
 import javapns.notification.PushedNotifications;
 
 import org.json.JSONException;
+import org.json.JSONObject;
 
 import java.lang.reflect.Method;
 import java.text.SimpleDateFormat;
@@ -49,6 +50,9 @@ class Sender {
   private String password;
   private boolean production;
   private boolean isConnected = false;
+  private long lastUsedTime;
+  // only accessed by SenderPool
+  int consecutiveFailures = 0;
   Method processedFailedNotificationsMethod = null;
 
   /**
@@ -94,6 +98,30 @@ class Sender {
     isConnected = false;
   }
 
+  /**
+   * Stops the connection if it is open, logging any error instead of throwing it.
+   */
+  void closeConnectionQuietly() {
+    if (!isConnected) {
+      return;
+    }
+    try {
+      stopConnection();
+    } catch (Exception e) {
+      // Catching all exceptions as the connection is abandoned anyway.
+      log.log(Level.INFO, "Stopping the connection failed", e);
+      isConnected = false;
+    }
+  }
+
+  /**
+   * Returns the time in milliseconds since a notification was last sent over the open connection,
+   * or 0 if there is no open connection.
+   */
+  long getIdleMillis() {
+    return isConnected ? System.currentTimeMillis() - lastUsedTime : 0;
+  }
+
   /**
    * Sends an alert notification to a list of devices.
    *
@@ -152,8 +180,9 @@ class Sender {
           notifications.add(new PushedNotification(device, payload, e));
         }
       }
+      lastUsedTime = System.currentTimeMillis();
     } catch (CommunicationException e) {
-      stopConnection();
+      closeConnectionQuietly();
       throw e;
     }
     return notifications;
@@ -172,7 +201,7 @@ class Sender {
       throw new IllegalArgumentException("Input arguments cannot be a null or an empty String");
     }
 
-    PushNotificationPayload payload = new PushNotificationPayload();
+    PushNotificationPayload payload = new SerializedOncePayload();
 
     try {
       payload.addAlert(alertMessage);
@@ -203,4 +232,28 @@ class Sender {
       log.log(Level.WARNING, "Processing failed notifications failed", e);
     }
   }
+
+  /**
+   * Payload that is serialized once, instead of once for every device it is sent to.
+   */
+  private static class SerializedOncePayload extends PushNotificationPayload {
+    private volatile byte[] payloadAsBytes;
+
+    @Override
+    public byte[] getPayloadAsBytes() throws Exception {
+      byte[] bytes = payloadAsBytes;
+      if (bytes == null) {
+        bytes = super.getPayloadAsBytes();
+        payloadAsBytes = bytes;
+      }
+      return bytes;
+    }
+
+    @Override
+    protected void put(String propertyName, Object propertyValue, JSONObject object, boolean opt)
+        throws JSONException {
+      payloadAsBytes = null;
+      super.put(propertyName, propertyValue, object, opt);
+    }
+  }
 }
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.pushnotification;
+
+import com.google.cloud.backend.config.BackendConfigManager;
+
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Pool of {@link Sender}s, each of them holding one connection to APNS, that is shared by all the
+ * {@link Worker}s of an instance.
+ *
+ * A worker borrows a sender for a batch of tasks, streams the notifications of the batch over its
+ * connection, processes the error-responses of the connection and returns the sender to the pool.
+ * Connections are opened on first use and kept open between batches. A connection that has been
+ * idle for too long is closed before it is handed out, as APNS may have dropped it silently. A
+ * sender whose connection failed is only handed out again after an exponential back off, so that
+ * workers use the healthy connections in the meantime instead of reconnecting in a loop.
+ */
+class SenderPool {
+
+  private static final Logger log = Logger.getLogger(SenderPool.class.getName());
+
+  private static final int POOL_SIZE = Integer.getInteger("mobilebackend.push.apnsConnections", 4);
+
+  private static final long MAX_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  private static final long MIN_BACK_OFF_MILLIS = TimeUnit.SECONDS.toMillis(2);
+
+  private static final long MAX_BACK_OFF_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+  private final DelayQueue<PooledSender> available = new DelayQueue<PooledSender>();
+
+  private static class Holder {
+    private static final SenderPool _instance = new SenderPool();
+  }
+
+  /**
+   * Returns the Singleton instance, which is created on first use.
+   */
+  static SenderPool getInstance() {
+    return Holder._instance;
+  }
+
+  private SenderPool() {
+    BackendConfigManager backendConfigManager = new BackendConfigManager();
+    byte[] certificate = backendConfigManager.getPushNotificationCertificateBytes();
+    String password = backendConfigManager.getPushCertPassword();
+    for (int i = 0; i < POOL_SIZE; i++) {
+      Sender sender = new Sender(certificate, password, Configuration.USE_PRODUCTION_APNS_SERVICE);
+      available.add(new PooledSender(sender, 0));
+    }
+    log.info("Created a pool of " + POOL_SIZE + " APNS connections");
+  }
+
+  /**
+   * Borrows a sender, waiting until one is available and is not backing off. The sender must be
+   * returned with {@link #release(Sender, boolean)}.
+   *
+   * @throws InterruptedException if interrupted while waiting
+   */
+  Sender borrow() throws InterruptedException {
+    Sender sender = available.take().sender;
+    if (sender.getIdleMillis() > MAX_IDLE_MILLIS) {
+      sender.closeConnectionQuietly();
+    }
+    return sender;
+  }
+
+  /**
+   * Returns a borrowed sender to the pool. All the error-responses of its connection must have been
+   * processed, so that the next borrower does not process them.
+   *
+   * @param sender the borrowed {@link Sender}
+   * @param healthy false if its connection failed. It is then closed, and the sender is not handed
+   *          out again until it has backed off.
+   */
+  void release(Sender sender, boolean healthy) {
+    if (healthy) {
+      sender.consecutiveFailures = 0;
+      available.add(new PooledSender(sender, 0));
+      return;
+    }
+    sender.closeConnectionQuietly();
+    int failures = ++sender.consecutiveFailures;
+    long backOffMillis = Math.min(MAX_BACK_OFF_MILLIS,
+        MIN_BACK_OFF_MILLIS << Math.min(failures - 1, 16));
+    backOffMillis += (long) (Math.random() * 1000);
+    log.info("APNS connection failed " + failures + " time(s) in a row, reconnecting in "
+        + backOffMillis + " ms");
+    available.add(new PooledSender(sender, System.currentTimeMillis() + backOffMillis));
+  }
+
+  private static class PooledSender implements Delayed {
+
+    private final Sender sender;
+
+    private final long availableAt;
+
+    private PooledSender(Sender sender, long availableAt) {
+      this.sender = sender;
+      this.availableAt = availableAt;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(availableAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed o) {
+      long other = ((PooledSender) o).availableAt;
+      return availableAt < other ? -1 : (availableAt == other ? 0 : 1);
+    }
+  }
+}
@@ -18,6 +18,8 @@ import com.google.appengine.api.taskqueue.QueueFactory;
 import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.gson.Gson;
 
+import org.apache.commons.codec.digest.DigestUtils;
+
 import java.util.List;
 
 /**
@@ -84,8 +86,11 @@ public class Utility {
   }
 
   private static void enqueuePushAlertToDevices(String alertMessage, String devicesAsJson) {
+    // The tag groups the tasks with the same alert, so that Worker leases them together and sends
+    // the alert with a single payload.
     Queue notificationQueue = QueueFactory.getQueue("notification-delivery");
     notificationQueue.add(TaskOptions.Builder.withMethod(TaskOptions.Method.PULL)
+        .tag(DigestUtils.sha1Hex(alertMessage))
         .param("alert", alertMessage)
         .param("devices", devicesAsJson));
   }
@@ -14,11 +14,13 @@
 package com.google.cloud.backend.pushnotification;
 
 import com.google.appengine.api.LifecycleManager;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.memcache.AsyncMemcacheService;
 import com.google.appengine.api.memcache.ErrorHandlers;
 import com.google.appengine.api.memcache.Expiration;
 import com.google.appengine.api.memcache.MemcacheService;
@@ -28,7 +30,6 @@ import com.google.appengine.api.taskqueue.TaskHandle;
 import com.google.appengine.api.taskqueue.TransientFailureException;
 import com.google.apphosting.api.ApiProxy;
 import com.google.apphosting.api.ApiProxy.ApiDeadlineExceededException;
-import com.google.cloud.backend.config.BackendConfigManager;
 import com.google.gson.Gson;
 
 import javapns.communication.exceptions.CommunicationException;
@@ -40,12 +41,17 @@ import javapns.notification.ResponsePacket;
 
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -60,25 +66,33 @@ class Worker {
 
   private static final Logger log = Logger.getLogger(Worker.class.getName());
   private static final MemcacheService cache = MemcacheServiceFactory.getMemcacheService();
+  private static final AsyncMemcacheService asyncCache = MemcacheServiceFactory
+      .getAsyncMemcacheService();
   private static final DatastoreService dataStore = DatastoreServiceFactory.getDatastoreService();
-  private static final BackendConfigManager backendConfigManager = new BackendConfigManager();
-  private Sender notificationSender = new Sender(
-      backendConfigManager.getPushNotificationCertificateBytes(),
-      backendConfigManager.getPushCertPassword(),
-      Configuration.USE_PRODUCTION_APNS_SERVICE);
+  private static final AsyncDatastoreService asyncDataStore = DatastoreServiceFactory
+      .getAsyncDatastoreService();
+  private final SenderPool senderPool = SenderPool.getInstance();
   static final String PROCESSED_NOTIFICATION_TASKS_ENTITY_KIND = "_ProcessedNotificationsTasks";
 
   private Queue queue;
+  private WorkerController controller;
+
+  // the current handles of the leased tasks, and the time at which their leases expire
+  private List<TaskHandle> leasedTasks;
+  private long leaseDeadline;
 
   /**
    * @constructor
    *
    * @param queue Task queue that needs to be processed
+   * @param controller Controller that sizes the leases and records the processing times
    */
-  protected Worker(Queue queue) {
+  protected Worker(Queue queue, WorkerController controller) {
     this.queue = queue;
+    this.controller = controller;
 
     cache.setErrorHandler(ErrorHandlers.getConsistentLogAndContinue(Level.INFO));
+    asyncCache.setErrorHandler(ErrorHandlers.getConsistentLogAndContinue(Level.INFO));
   }
 
   /**
@@ -116,12 +130,18 @@ class Worker {
          * And the longer the lease time, the longer it takes for the tasks to be processed in case
          * an instance is restarted.
          *
-         * Assumption used in the sample: Lease time of 30 minutes is reasonable as per the 
-         * discussion above. A single thread should be able to process 100 tasks or 25,000 
-         * notifications in that time. 
-         * You may need to optimize these values to your scenario.
+         * Tasks are tagged by their alert, and leasing by a null tag leases the tasks with the tag
+         * of the oldest task, so that the alert of the batch is sent with a single payload.
+         *
+         * The controller starts with leases of 100 tasks for 30 minutes, then sizes the leases
+         * from the observed processing time per task, see WorkerController.
          */
-        tasks = queue.leaseTasks(30, TimeUnit.MINUTES, 100);
+        long leasedAt = System.currentTimeMillis();
+        long leaseMillis = controller.getLeaseMillis();
+        tasks = queue.leaseTasksByTag(leaseMillis, TimeUnit.MILLISECONDS,
+            controller.getLeaseSize(), null);
+        leasedTasks = new ArrayList<TaskHandle>(tasks);
+        leaseDeadline = leasedAt + leaseMillis;
         return tasks;
       } catch (TransientFailureException e) {
         log.warning("TransientFailureException when leasing tasks from queue '"
@@ -137,6 +157,37 @@ class Worker {
     return null;
   }
 
+  /**
+   * Extends the leases of the leased tasks if the next chunks of notifications might not be sent
+   * before they expire, so that the tasks are not leased and pushed again by another worker.
+   *
+   * @param chunkCount number of chunks of notifications about to be sent
+   * @return false if the leases could not be extended because they have expired
+   */
+  private boolean ensureLease(int chunkCount) {
+    long now = System.currentTimeMillis();
+    long chunkMillis = controller.getChunkMillis();
+    if (now + WorkerController.LEASE_SAFETY_FACTOR * chunkMillis < leaseDeadline) {
+      return true;
+    }
+
+    long leaseMillis = controller.getLeaseMillis(leasedTasks.size())
+        + WorkerController.LEASE_SAFETY_FACTOR * chunkMillis * chunkCount;
+    try {
+      for (int i = 0; i < leasedTasks.size(); i++) {
+        leasedTasks.set(i, queue.modifyTaskLease(leasedTasks.get(i), leaseMillis,
+            TimeUnit.MILLISECONDS));
+      }
+    } catch (IllegalStateException e) {
+      log.warning("The leases of " + leasedTasks.size() + " tasks from queue '"
+          + queue.getQueueName() + "' expired before they were processed");
+      return false;
+    }
+    leaseDeadline = now + leaseMillis;
+    log.info("Extended the leases of " + leasedTasks.size() + " tasks by " + leaseMillis + " ms");
+    return true;
+  }
+
   private void deleteTasks(List<TaskHandle> tasks) {
     for (int attemptNo = 1;; attemptNo++) {
       try {
@@ -162,38 +213,108 @@ class Worker {
    * @result True The list of processed tasks
    */
   private void processLeasedTasks(List<TaskHandle> tasks) {
+    long startTime = System.currentTimeMillis();
     Set<String> previouslyProcessedTaskNames = getAlreadyProcessedTaskNames(tasks);
 
     List<TaskHandle> processedTasks = new ArrayList<TaskHandle>();
 
+    // Tasks whose processing has not been recorded yet. They are recorded together with the
+    // pushed notifications processing, and always before the tasks are deleted.
+    List<TaskHandle> unrecordedTasks = new ArrayList<TaskHandle>();
+
+    // Tasks are leased by tag, so they usually all carry the same alert. The device tokens of the
+    // tasks with the same alert are merged, and the alert is sent with a single payload.
+    Map<String, AlertGroup> alertGroups = new LinkedHashMap<String, AlertGroup>();
+    for (TaskHandle task : tasks) {
+      if (previouslyProcessedTaskNames.contains(task.getName())) {
+        log.info("Ignoring a task " + task.getName() + " that has been already processed "
+            + "to avoid sending duplicated notification.");
+        processedTasks.add(task);
+        continue;
+      }
+
+      PushAlert alert = readPushAlert(task);
+      if (alert == null) {
+        processedTasks.add(task);
+        unrecordedTasks.add(task);
+        continue;
+      }
+
+      AlertGroup group = alertGroups.get(alert.message);
+      if (group == null) {
+        group = new AlertGroup(alert.message);
+        alertGroups.put(alert.message, group);
+      }
+      group.tasks.add(task);
+      group.deviceTokens.addAll(Arrays.asList(alert.deviceTokens));
+    }
+
     long pushedNotificationCount = 0;
     Map<String, PushedNotifications> pushedNotificationsForTasks =
         new HashMap<String, PushedNotifications>();
 
     boolean backOff = false;
+    boolean leaseLost = false;
 
-    for (TaskHandle task : tasks) {
+    // The notifications of all the tasks are streamed over one pooled connection. Another one is
+    // borrowed only if it fails.
+    Sender sender = null;
+
+    for (AlertGroup group : alertGroups.values()) {
       if (LifecycleManager.getInstance().isShuttingDown()) {
         break;
       }
 
-      processedTasks.add(task);
+      // the tasks of the remaining groups are left to another lease if the leases were lost
+      int chunkCount = (group.deviceTokens.size() + BATCH_NOTIFICATION_PROCESS_SIZE - 1)
+          / BATCH_NOTIFICATION_PROCESS_SIZE;
+      if (!ensureLease(chunkCount)) {
+        leaseLost = true;
+        break;
+      }
 
-      if (previouslyProcessedTaskNames.contains(task.getName())) {
-        log.info("Ignoring a task " + task.getName() + " that has been already processed "
-            + "to avoid sending duplicated notification.");
-        continue;
+      if (sender == null) {
+        try {
+          sender = senderPool.borrow();
+        } catch (InterruptedException e) {
+          break;
+        }
       }
 
+      processedTasks.addAll(group.tasks);
+
       try {
-        PushedNotifications pushedNotifications = processLeasedTask(task);
-        pushedNotificationsForTasks.put(task.getName(), pushedNotifications);
-        pushedNotificationCount += pushedNotifications.size();
-        // Process pushed notifications every BATCH_NOTIFICATION_PROCESS_SIZE notifications or so
-        if (pushedNotificationCount >= BATCH_NOTIFICATION_PROCESS_SIZE) {
-          pushedNotificationCount = 0;
-          processPushedNotifications(pushedNotificationsForTasks);
-          pushedNotificationsForTasks.clear();
+        PushNotificationPayload payload = sender.createPayload("You receive a message",
+            group.message);
+
+        /*
+         * Send BATCH_NOTIFICATION_PROCESS_SIZE notifications at a time, and process them after
+         * each full chunk. Only the last chunk of a group may be left for later, so the group name
+         * is never used twice in pushedNotificationsForTasks.
+         */
+        String[] deviceTokens = group.deviceTokens.toArray(new String[group.deviceTokens.size()]);
+        for (int from = 0; from < deviceTokens.length; from += BATCH_NOTIFICATION_PROCESS_SIZE) {
+          if (from > 0 && !ensureLease(
+              (deviceTokens.length - from + BATCH_NOTIFICATION_PROCESS_SIZE - 1)
+              / BATCH_NOTIFICATION_PROCESS_SIZE)) {
+            leaseLost = true;
+            break;
+          }
+          String[] chunk = Arrays.copyOfRange(deviceTokens, from,
+              Math.min(deviceTokens.length, from + BATCH_NOTIFICATION_PROCESS_SIZE));
+          long chunkStartTime = System.currentTimeMillis();
+          PushedNotifications pushedNotifications = sender.sendPayload(payload, chunk);
+          controller.recordChunk(System.currentTimeMillis() - chunkStartTime);
+          pushedNotificationsForTasks.put(group.getName(), pushedNotifications);
+          pushedNotificationCount += pushedNotifications.size();
+          // Process pushed notifications every BATCH_NOTIFICATION_PROCESS_SIZE notifications or so
+          if (pushedNotificationCount >= BATCH_NOTIFICATION_PROCESS_SIZE) {
+            pushedNotificationCount = 0;
+            processPushedNotifications(sender, pushedNotificationsForTasks);
+            pushedNotificationsForTasks.clear();
+            recordTasksProcessed(unrecordedTasks);
+            unrecordedTasks.clear();
+          }
         }
 
       } catch (CommunicationException e) {
@@ -201,10 +322,12 @@ class Worker {
             "Sending push alert failed with CommunicationException:" + e.toString(), e);
         /*
          * This exception may be thrown when socket time out or similar issues occurred a few times
-         * in a row. Retrying right away likely won't succeed and will only make another task
-         * potentially only partially processed.
+         * in a row. The connection has been closed after its pending error-responses were read.
+         * Retrying on it right away likely won't succeed, so the pool backs it off and the next
+         * alert is sent over another connection.
          */
-        backOff = true;
+        senderPool.release(sender, false);
+        sender = null;
       } catch (KeystoreException e) {
         log.log(
             Level.WARNING, "Sending push alert failed with KeystoreException:" + e.toString(), e);
@@ -214,16 +337,29 @@ class Worker {
          */
         backOff = true;
       } finally {
-        recordTaskProcessed(task);
+        if (leaseLost) {
+          // the tasks were not fully sent, and are left to the worker that leases them next
+          processedTasks.removeAll(group.tasks);
+        } else {
+          unrecordedTasks.addAll(group.tasks);
+        }
+      }
+      if (leaseLost) {
+        break;
       }
     }
 
+    recordTasksProcessed(unrecordedTasks);
     deleteTasks(processedTasks);
 
-    // Process any remaining pushed notifications.
+    // Process any remaining pushed notifications, then return the connection to the pool.
     if (pushedNotificationCount > 0) {
-      processPushedNotifications(pushedNotificationsForTasks);
+      processPushedNotifications(sender, pushedNotificationsForTasks);
+    }
+    if (sender != null) {
+      senderPool.release(sender, true);
     }
+    controller.recordBatch(processedTasks.size(), System.currentTimeMillis() - startTime);
 
     // Now all leased tasks are deleted, so it is safe to pause if appropriate.
     if (backOff) {
@@ -246,13 +382,12 @@ class Worker {
   }
 
   /**
-   * Processes a task with push notifications requests.
+   * Reads the alert of a task with push notifications requests.
    *
-   * @param task the tasks to be processed.
-   * @return a collection of pushed notifications or null if no notifications were sent.
+   * @param task the task to be read.
+   * @return the alert and its device tokens, or null if the task is invalid.
    */
-  private PushedNotifications processLeasedTask(TaskHandle task)
-      throws CommunicationException, KeystoreException {
+  private PushAlert readPushAlert(TaskHandle task) {
     String hiddenMessage = null;
     String[] deviceTokens = null;
     List<Entry<String, String>> params = null;
@@ -285,14 +420,16 @@ class Worker {
       return null;
     }
 
-    PushNotificationPayload payload = notificationSender.createPayload("You receive a message", 
-        hiddenMessage);
-
-    return notificationSender.sendPayload(payload, deviceTokens);
+    return new PushAlert(hiddenMessage, deviceTokens);
   }
 
-  private void processPushedNotifications(Map<String, PushedNotifications> pushedNotifications) {
-    notificationSender.processedPendingNotificationResponses();
+  private void processPushedNotifications(Sender notificationSender,
+      Map<String, PushedNotifications> pushedNotifications) {
+    // notificationSender is null if the last connection failed, and its error-responses have been
+    // processed when it was closed
+    if (notificationSender != null) {
+      notificationSender.processedPendingNotificationResponses();
+    }
 
     for (String taskName : pushedNotifications.keySet()) {
       processPushedNotifications(taskName, pushedNotifications.get(taskName));
@@ -339,11 +476,38 @@ class Worker {
     return true;
   }
 
-  private void recordTaskProcessed(TaskHandle task) {
-    cache.put(task.getName(), 1, Expiration.byDeltaSeconds(60 * 60 * 2));
-    Entity entity = new Entity(PROCESSED_NOTIFICATION_TASKS_ENTITY_KIND, task.getName());
-    entity.setProperty("processedAt", new Date());
-    dataStore.put(entity);
+  /**
+   * Records that tasks have been processed, with one Memcache and one Datastore batch put that run
+   * concurrently. Returns when the Datastore put is complete, so that the tasks can be deleted.
+   *
+   * @param tasks the list of the processed tasks.
+   */
+  private void recordTasksProcessed(List<TaskHandle> tasks) {
+    if (tasks.isEmpty()) {
+      return;
+    }
+
+    Map<String, Integer> cacheValues = new HashMap<String, Integer>();
+    List<Entity> entities = new ArrayList<Entity>();
+    Date processedAt = new Date();
+    for (TaskHandle task : tasks) {
+      cacheValues.put(task.getName(), 1);
+      Entity entity = new Entity(PROCESSED_NOTIFICATION_TASKS_ENTITY_KIND, task.getName());
+      entity.setProperty("processedAt", processedAt);
+      entities.add(entity);
+    }
+
+    Future<List<Key>> putFuture = asyncDataStore.put(entities);
+    asyncCache.putAll(cacheValues, Expiration.byDeltaSeconds(60 * 60 * 2));
+
+    try {
+      putFuture.get();
+    } catch (ExecutionException e) {
+      // The tasks are still deleted. Only a failure to delete them would make them processed again.
+      log.log(Level.WARNING, "Recording " + tasks.size() + " processed tasks failed", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
   }
 
   /**
@@ -384,4 +548,32 @@ class Worker {
 
     return alreadyProcessedTaskNames.keySet();
   }
+
+  private static class PushAlert {
+    private final String message;
+    private final String[] deviceTokens;
+
+    private PushAlert(String message, String[] deviceTokens) {
+      this.message = message;
+      this.deviceTokens = deviceTokens;
+    }
+  }
+
+  /**
+   * Leased tasks with the same alert, and their device tokens without duplicates.
+   */
+  private static class AlertGroup {
+    private final String message;
+    private final List<TaskHandle> tasks = new ArrayList<TaskHandle>();
+    private final Set<String> deviceTokens = new LinkedHashSet<String>();
+
+    private AlertGroup(String message) {
+      this.message = message;
+    }
+
+    private String getName() {
+      String name = tasks.get(0).getName();
+      return tasks.size() == 1 ? name : name + " and " + (tasks.size() - 1) + " other tasks";
+    }
+  }
 }
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.pushnotification;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueStatistics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Adapts the number of polling {@link Worker}s and the size and duration of their leases to the
+ * backlog of a pull queue and to the observed processing time of the tasks.
+ *
+ * - The lease size is the number of tasks a worker is expected to process in about
+ *   TARGET_BATCH_MILLIS, so that a task held by a worker that stopped is leased again soon.
+ * - The lease duration is a multiple of the expected processing time of the leased tasks. As
+ *   the tasks of a lease are merged by alert, a lease may take much longer than expected, so the
+ *   workers extend it before sending a chunk of notifications that might outlive it.
+ * - The number of workers is the number of leases needed to cover the backlog. Extra workers stop
+ *   when they find the queue empty, down to a single one that keeps polling.
+ *
+ * Until a batch has been processed, the leases are the largest and longest ones.
+ */
+class WorkerController {
+
+  private static final Logger log = Logger.getLogger(WorkerController.class.getName());
+
+  static final int MAX_WORKERS = Integer.getInteger("mobilebackend.push.maxWorkers", 8);
+
+  private static final int MIN_WORKERS = 1;
+
+  private static final int MIN_LEASE_SIZE = 10;
+
+  private static final int MAX_LEASE_SIZE = 100;
+
+  private static final long MIN_LEASE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  private static final long MAX_LEASE_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+  private static final long TARGET_BATCH_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  // lease duration relative to the expected processing time, to absorb slow batches and retries
+  static final int LEASE_SAFETY_FACTOR = 3;
+
+  // expected time to send a chunk of notifications until one has been timed
+  private static final long DEFAULT_CHUNK_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+  // weight of the last batch in the moving average of the processing time per task
+  private static final double SMOOTHING = 0.3;
+
+  private final Queue queue;
+
+  private double millisPerTask = -1;
+
+  private double millisPerChunk = -1;
+
+  private long backlog = -1;
+
+  private int runningWorkers = 0;
+
+  /**
+   * @constructor
+   *
+   * @param queue pull queue processed by the workers
+   */
+  WorkerController(Queue queue) {
+    this.queue = queue;
+  }
+
+  /**
+   * Reads the number of tasks in the queue. If the statistics cannot be read, the last known
+   * backlog is kept.
+   */
+  void refreshBacklog() {
+    QueueStatistics stats;
+    try {
+      stats = queue.fetchStatistics();
+    } catch (RuntimeException e) {
+      log.log(Level.INFO, "Fetching statistics of queue '" + queue.getQueueName() + "' failed", e);
+      return;
+    }
+    synchronized (this) {
+      backlog = stats.getNumTasks();
+    }
+  }
+
+  /**
+   * Records the processing time of a batch of leased tasks.
+   *
+   * @param taskCount number of tasks processed
+   * @param elapsedMillis time taken to process them
+   */
+  synchronized void recordBatch(int taskCount, long elapsedMillis) {
+    if (taskCount == 0) {
+      return;
+    }
+    double batchMillisPerTask = (double) elapsedMillis / taskCount;
+    millisPerTask = millisPerTask < 0 ? batchMillisPerTask
+        : SMOOTHING * batchMillisPerTask + (1 - SMOOTHING) * millisPerTask;
+  }
+
+  /**
+   * Records the time taken to send a chunk of notifications.
+   *
+   * @param elapsedMillis time taken to send the chunk
+   */
+  synchronized void recordChunk(long elapsedMillis) {
+    millisPerChunk = millisPerChunk < 0 ? elapsedMillis
+        : SMOOTHING * elapsedMillis + (1 - SMOOTHING) * millisPerChunk;
+  }
+
+  /**
+   * Returns the expected time in milliseconds to send a chunk of notifications.
+   */
+  synchronized long getChunkMillis() {
+    return millisPerChunk < 0 ? DEFAULT_CHUNK_MILLIS : (long) millisPerChunk;
+  }
+
+  /**
+   * Returns the number of tasks to lease at once.
+   */
+  synchronized int getLeaseSize() {
+    if (millisPerTask <= 0) {
+      return MAX_LEASE_SIZE;
+    }
+    return (int) Math.max(MIN_LEASE_SIZE,
+        Math.min(MAX_LEASE_SIZE, TARGET_BATCH_MILLIS / millisPerTask));
+  }
+
+  /**
+   * Returns the lease duration in milliseconds of a lease of {@link #getLeaseSize()} tasks.
+   */
+  synchronized long getLeaseMillis() {
+    return getLeaseMillis(getLeaseSize());
+  }
+
+  /**
+   * Returns the lease duration in milliseconds of the specified number of leased tasks.
+   *
+   * @param taskCount number of leased tasks
+   */
+  synchronized long getLeaseMillis(int taskCount) {
+    if (millisPerTask < 0) {
+      return MAX_LEASE_MILLIS;
+    }
+    long expectedMillis = (long) (millisPerTask * taskCount);
+    return Math.max(MIN_LEASE_MILLIS,
+        Math.min(MAX_LEASE_MILLIS, LEASE_SAFETY_FACTOR * expectedMillis));
+  }
+
+  /**
+   * Returns the number of workers needed for the current backlog.
+   */
+  synchronized int getTargetWorkers() {
+    if (backlog < 0) {
+      return MAX_WORKERS;
+    }
+    long leases = (backlog + getLeaseSize() - 1) / getLeaseSize();
+    return (int) Math.max(MIN_WORKERS, Math.min(MAX_WORKERS, leases));
+  }
+
+  /**
+   * Counts the workers that need to be started to reach the target number of workers as running,
+   * and returns their number.
+   */
+  synchronized int reserveWorkersToStart() {
+    int count = Math.max(0, getTargetWorkers() - runningWorkers);
+    runningWorkers += count;
+    if (count > 0) {
+      log.info("Starting " + count + " workers, backlog=" + backlog + ", leaseSize="
+          + getLeaseSize() + ", leaseMillis=" + getLeaseMillis());
+    }
+    return count;
+  }
+
+  /**
+   * Called by an idle worker. Returns true, and counts the worker as stopped, if there are more
+   * workers than needed.
+   */
+  synchronized boolean releaseIdleWorker() {
+    if (runningWorkers <= getTargetWorkers()) {
+      return false;
+    }
+    runningWorkers--;
+    log.info("Stopping an idle worker, " + runningWorkers + " workers left");
+    return true;
+  }
+
+  /**
+   * Counts a worker that stopped for another reason as stopped.
+   */
+  synchronized void workerStopped() {
+    runningWorkers--;
+  }
+}
@@ -33,43 +33,86 @@ import javax.servlet.http.HttpServletResponse;
 public class WorkerServlet extends HttpServlet {
   private static final long serialVersionUID = 1L;
   private static final Logger log = Logger.getLogger(WorkerServlet.class.getName());
-  private static final int NUMBER_OF_WORKERS = 8;
   private static final int MILLISECONDS_TO_WAIT_WHEN_NO_TASKS_LEASED = 2500;
+  private static final int MILLISECONDS_BETWEEN_ADJUSTMENTS = 10000;
 
   /**
-   * Create App Engine threads that will poll and the process the tasks.
+   * Create an App Engine thread that starts the threads that will poll and the process the tasks,
+   * as many as the backlog of the queue needs.
    */
   @Override
   public void doGet(HttpServletRequest req, HttpServletResponse res) {
-    for (int workerNo = 0; workerNo < NUMBER_OF_WORKERS; workerNo++) {
-      Thread thread = ThreadManager.createBackgroundThread(new Runnable() {
-        @Override
-        public void run() {
-          doPolling();
-        }
-      });
-      thread.start();
-    }
+    Thread thread = ThreadManager.createBackgroundThread(new Runnable() {
+      @Override
+      public void run() {
+        doSupervising();
+      }
+    });
+    thread.start();
   }
 
-  private void doPolling() {
+  private void doSupervising() {
     Queue notificationQueue = QueueFactory.getQueue("notification-delivery");
+    WorkerController controller = new WorkerController(notificationQueue);
 
-    Worker worker = new Worker(notificationQueue);
+    while (!LifecycleManager.getInstance().isShuttingDown()) {
+      controller.refreshBacklog();
+      for (int count = controller.reserveWorkersToStart(); count > 0; count--) {
+        startWorker(notificationQueue, controller);
+      }
+
+      try {
+        Thread.sleep(MILLISECONDS_BETWEEN_ADJUSTMENTS);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  private void startWorker(final Queue notificationQueue, final WorkerController controller) {
+    Thread thread = ThreadManager.createBackgroundThread(new Runnable() {
+      @Override
+      public void run() {
+        boolean released = false;
+        try {
+          released = doPolling(notificationQueue, controller);
+        } finally {
+          if (!released) {
+            controller.workerStopped();
+          }
+        }
+      }
+    });
+    thread.start();
+  }
+
+  /**
+   * Polls the queue until the instance shuts down or the worker is not needed any more.
+   *
+   * @return true if the worker stopped because it was released by the controller
+   */
+  private boolean doPolling(Queue notificationQueue, WorkerController controller) {
+    Worker worker = new Worker(notificationQueue, controller);
     while (!LifecycleManager.getInstance().isShuttingDown()) {
       boolean tasksProcessed = worker.processBatchOfTasks();
       ApiProxy.flushLogs();
 
       if (!tasksProcessed) {
+        // Stop if the backlog does not need this worker any more.
+        if (controller.releaseIdleWorker()) {
+          return true;
+        }
+
         // Wait before trying to lease tasks again.
         try {
           Thread.sleep(MILLISECONDS_TO_WAIT_WHEN_NO_TASKS_LEASED);
         } catch (InterruptedException e) {
-          return;
+          return false;
         }
       }
     }
 
     log.info("Instance is shutting down");
+    return false;
   }
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.spi;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.cloud.backend.beans.QueryDto;
+
+/**
+ * Matches saved CloudEntities with the subscriptions of continuous queries.
+ *
+ * The ids of the subscriptions that an entity matches are delivered to
+ * {@link ProspectiveSearchServlet#deliverMatches(java.util.Collection)}, either asynchronously or
+ * before {@link #match(Entity)} returns, depending on the implementation. The implementation is
+ * selected by {@link ContinuousQueryMatcherFactory}.
+ */
+interface ContinuousQueryMatcher {
+
+  /**
+   * Subscribes a continuous query. Subscribing again with the same id replaces the subscription.
+   *
+   * @param subId subscription id
+   * @param queryDto the query, whose kind name and filter are matched
+   * @param durationSec duration of the subscription, 0 for no expiration
+   */
+  void subscribe(String subId, QueryDto queryDto, int durationSec);
+
+  /**
+   * Removes a subscription.
+   *
+   * @param subId subscription id
+   * @throws IllegalArgumentException if there is no subscription with this id
+   */
+  void unsubscribe(String subId);
+
+  /**
+   * Matches a saved entity with the subscriptions, and delivers the ids of the matched
+   * subscriptions.
+   *
+   * @param entity the saved entity
+   */
+  void match(Entity entity);
+
+  /**
+   * Returns true if the subscriptions are only held by this instance, rather than shared by all
+   * the instances of the application.
+   */
+  boolean isLocal();
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.spi;
+
+import java.util.logging.Logger;
+
+/**
+ * Provides the {@link ContinuousQueryMatcher} selected by the "mobilebackend.matching.matcher"
+ * system property: "prospectiveSearch" (the default) for {@link ProspectiveSearchMatcher}, or
+ * "inMemory" for {@link InMemoryMatcher}.
+ */
+final class ContinuousQueryMatcherFactory {
+
+  private static final Logger log = Logger.getLogger(
+      ContinuousQueryMatcherFactory.class.getName());
+
+  static final String MATCHER_PROSPECTIVE_SEARCH = "prospectiveSearch";
+
+  static final String MATCHER_IN_MEMORY = "inMemory";
+
+  private static class Holder {
+    private static final ContinuousQueryMatcher _instance = createMatcher(
+        System.getProperty("mobilebackend.matching.matcher", MATCHER_PROSPECTIVE_SEARCH));
+  }
+
+  private ContinuousQueryMatcherFactory() {
+  }
+
+  /**
+   * Returns the Singleton matcher, which is created on first use.
+   */
+  static ContinuousQueryMatcher getMatcher() {
+    return Holder._instance;
+  }
+
+  private static ContinuousQueryMatcher createMatcher(String name) {
+    if (MATCHER_IN_MEMORY.equals(name)) {
+      log.info("Continuous queries are matched in memory");
+      return new InMemoryMatcher();
+    }
+    if (!MATCHER_PROSPECTIVE_SEARCH.equals(name)) {
+      log.warning("Unknown matcher '" + name + "', using Prospective Search API");
+    }
+    return new ProspectiveSearchMatcher();
+  }
+}
@@ -2,19 +2,22 @@ package com.google.cloud.backend.spi;
 
 import com.google.api.server.spi.response.NotFoundException;
 import com.google.api.server.spi.response.UnauthorizedException;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreFailureException;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.memcache.AsyncMemcacheService;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
-import com.google.appengine.api.prospectivesearch.ProspectiveSearchService;
-import com.google.appengine.api.prospectivesearch.ProspectiveSearchServiceFactory;
 import com.google.appengine.api.users.User;
 import com.google.cloud.backend.beans.EntityDto;
 import com.google.cloud.backend.beans.EntityListDto;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -23,6 +26,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.inject.Named;
 
@@ -36,11 +41,16 @@ public class CrudOperations {
 
   private static final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
 
-  private static final ProspectiveSearchService prosSearch = ProspectiveSearchServiceFactory
-      .getProspectiveSearchService();
+  private static final AsyncDatastoreService asyncDatastore = DatastoreServiceFactory
+      .getAsyncDatastoreService();
 
   private static final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
 
+  private static final AsyncMemcacheService asyncMemcache = MemcacheServiceFactory
+      .getAsyncMemcacheService();
+
+  private static final EntityCache entityCache = EntityCache.getInstance();
+
   private static final CrudOperations _instance = new CrudOperations();
 
   /**
@@ -72,17 +82,20 @@ public class CrudOperations {
     // create new entities
     Set<Entity> newEntities = createNewEntities(cdl, user, existingEntities);
 
-    // apply changes to Datastore
+    // apply changes to Datastore. The commit runs in the background while Memcache is updated
+    // below.
     Set<Entity> allEntities = new HashSet<Entity>();
     allEntities.addAll(newEntities);
     allEntities.addAll(existingEntities.values());
-    datastore.put(allEntities);
+    Future<List<Key>> putFuture = asyncDatastore.put(allEntities);
 
-    // update Memcache and ProsSearch
+    // update Memcache
     Map<String, Entity> allEntitiesMap = new HashMap<String, Entity>();
+    List<Key> allKeys = new LinkedList<Key>();
     for (Entity e : allEntities) {
+      allKeys.add(e.getKey());
 
-      // if it's a "private" entity, skip memcache and prossearch
+      // if it's a "private" entity, skip memcache
       if (e.getKind().startsWith(SecurityChecker.KIND_PREFIX_PRIVATE)) {
         continue;
       }
@@ -90,22 +103,62 @@ public class CrudOperations {
       // apply changes to Memcache
       allEntitiesMap.put(e.getKey().getName(), e);
     }
-    memcache.putAll(allEntitiesMap);
+    Future<Void> memcacheFuture = asyncMemcache.putAll(allEntitiesMap);
 
-    // match with subscribers (date props converted to double)
-    for (Entity e : allEntities) {
-      convertDatePropertyToEpochTime(e, EntityDto.PROP_CREATED_AT);
-      convertDatePropertyToEpochTime(e, EntityDto.PROP_UPDATED_AT);
-      prosSearch.match(e, QueryOperations.PROS_SEARCH_DEFAULT_TOPIC);
+    // wait for the durable write before returning
+    waitForCommit(putFuture, memcacheFuture, allEntitiesMap.keySet());
+
+    // invalidate the cached copies on all instances once Memcache holds the new values, so that
+    // no instance reads an old value from Memcache under the new generation. A failed Memcache put
+    // is cleared, and the entities are read back from Datastore.
+    if (!awaitMemcachePut(memcacheFuture)) {
+      memcache.deleteAll(allEntitiesMap.keySet());
     }
+    entityCache.invalidate(allKeys);
+
+    // match with subscribers later, outside of this request
+    MatchingStage.getInstance().enqueue(allKeys);
 
     // return a list of the updated EntityDto
     return cdl;
   }
 
-  private void convertDatePropertyToEpochTime(Entity e, String propName) {
-    Date d = (Date) e.getProperty(propName);
-    e.setProperty(propName, Double.parseDouble(String.valueOf(d.getTime())));
+  // waits for the Datastore put to complete. If it failed, the entities that were optimistically
+  // put on Memcache are removed from it, so that they are read back from Datastore.
+  private void waitForCommit(Future<List<Key>> putFuture, Future<Void> memcacheFuture,
+      Collection<String> memcachedIds) {
+    try {
+      putFuture.get();
+    } catch (ExecutionException e) {
+      rollbackMemcache(memcacheFuture, memcachedIds);
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new DatastoreFailureException("saveAll: failed to put entities", e.getCause());
+    } catch (InterruptedException e) {
+      rollbackMemcache(memcacheFuture, memcachedIds);
+      Thread.currentThread().interrupt();
+      throw new DatastoreFailureException("saveAll: interrupted while putting entities", e);
+    }
+  }
+
+  private void rollbackMemcache(Future<Void> memcacheFuture, Collection<String> memcachedIds) {
+    // the delete must not overtake the pending put
+    awaitMemcachePut(memcacheFuture);
+    memcache.deleteAll(memcachedIds);
+  }
+
+  // waits for the Memcache put to complete, and returns false if it failed
+  private boolean awaitMemcachePut(Future<Void> memcacheFuture) {
+    try {
+      memcacheFuture.get();
+      return true;
+    } catch (ExecutionException e) {
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
   }
 
   private Map<String, Entity> findAndUpdateExistingEntities(EntityListDto cdl, User user)
@@ -147,8 +200,9 @@ public class CrudOperations {
 
   /**
    * Returns a {@link java.util.Map} of CloudEntity IDs and {@link com.google.appengine.api.datastore.Entity}s for specified
-   * {@link java.util.List} of {@link com.google.appengine.api.datastore.Key}s. It first tries to get them from Memcache, and
-   * get from Datastore for entities not cached.
+   * {@link java.util.List} of {@link com.google.appengine.api.datastore.Key}s. It first tries to get them from the
+   * {@link EntityCache} of this instance, then from Memcache, and get from Datastore for entities
+   * not cached.
    * 
    * @param keyList
    *          {@link java.util.List} of {@link com.google.appengine.api.datastore.Key}s
@@ -156,17 +210,26 @@ public class CrudOperations {
    */
   protected Map<String, Entity> getAllEntitiesByKeyList(List<Key> keyList) {
 
-    // try to get entities from Memcache
+    // try to get entities from the instance cache
+    Map<String, Long> generations = entityCache.getGenerations(keyList);
+    Map<String, Entity> cachedEntities = entityCache.getAll(keyList, generations);
+    if (cachedEntities.size() == keyList.size()) {
+      return cachedEntities;
+    }
+
+    // try to get the rest of entities from Memcache
     List<String> idList = new LinkedList<String>();
     for (Key k : keyList) {
-      idList.add(k.getName());
+      if (!cachedEntities.containsKey(k.getName())) {
+        idList.add(k.getName());
+      }
     }
     Map<String, Object> entities = memcache.getAll(idList);
 
     // build a list of Keys that have not found on Memcache
     List<Key> keysNotInMem = new LinkedList<Key>();
     for (Key k : keyList) {
-      if (!entities.keySet().contains(k.getName())) {
+      if (!cachedEntities.containsKey(k.getName()) && !entities.keySet().contains(k.getName())) {
         keysNotInMem.add(k);
       }
     }
@@ -184,6 +247,10 @@ public class CrudOperations {
     for (String id : entities.keySet()) {
       resultEntities.put(id, (Entity) entities.get(id));
     }
+
+    // put the loaded entities on the instance cache
+    entityCache.putAll(resultEntities.values(), generations);
+    resultEntities.putAll(cachedEntities);
     return resultEntities;
   }
 
@@ -233,17 +300,27 @@ public class CrudOperations {
 
   private Entity getEntityById(String kindName, String id, User user) throws NotFoundException {
 
+    // try to find the Entity on the instance cache
+    Key key = SecurityChecker.getInstance().createKeyWithNamespace(kindName, id, user);
+    List<Key> keyList = Collections.singletonList(key);
+    Map<String, Long> generations = entityCache.getGenerations(keyList);
+    Entity e = entityCache.getAll(keyList, generations).get(id);
+    if (e != null) {
+      return e;
+    }
+
     // try to find the Entity on Memcache
-    Entity e = (Entity) memcache.get(id);
+    e = (Entity) memcache.get(id);
 
     // try to find the Entity
     if (e == null) {
       try {
-        e = datastore.get(SecurityChecker.getInstance().createKeyWithNamespace(kindName, id, user));
+        e = datastore.get(key);
       } catch (EntityNotFoundException e2) {
         throw new NotFoundException("Cloud Entity not found for id: " + id);
       }
     }
+    entityCache.putAll(Collections.singletonList(e), generations);
     return e;
   }
 
@@ -273,11 +350,12 @@ public class CrudOperations {
     }
     SecurityChecker.getInstance().checkAclForWrite(e, user);
 
-    // delete from memcache
+    // delete from memcache, then the CE. Memcache is cleared again and the instance caches are
+    // invalidated after the delete, so that a concurrent read cannot cache the deleted CE.
     memcache.delete(id);
-
-    // delete the CE
     datastore.delete(e.getKey());
+    memcache.delete(id);
+    entityCache.invalidate(Collections.singletonList(e.getKey()));
 
     // return a EntityDto
     return EntityDto.createFromEntity(e);
@@ -291,11 +369,14 @@ public class CrudOperations {
       SecurityChecker.getInstance().checkAclForWrite(e, user);
     }
 
-    // delete from memcache
-    memcache.deleteAll(cdl.readIdList());
-
-    // delete all the Entities
-    datastore.delete(cdl.readKeyList(user));
+    // delete from memcache, then all the Entities. Memcache is cleared again and the instance
+    // caches are invalidated after the delete, so that a concurrent read cannot cache them.
+    List<Key> keyList = cdl.readKeyList(user);
+    List<String> idList = cdl.readIdList();
+    memcache.deleteAll(idList);
+    datastore.delete(keyList);
+    memcache.deleteAll(idList);
+    entityCache.invalidate(keyList);
 
     // return a dummy collection
     return new EntityListDto();
@@ -29,6 +29,7 @@ import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.appengine.api.taskqueue.Queue;
 import com.google.appengine.api.taskqueue.QueueFactory;
 import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.cloud.backend.config.BackendConfigManager;
 import com.google.cloud.backend.config.StringUtility;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
@@ -37,14 +38,25 @@ import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
 
 /**
  * Handles the persistence of each device and Perspective Search API subscription.
+ *
+ * A device is stored as a SUBSCRIPTION_KIND entity, and each of its subscriptions as a child
+ * entity of kind SUBSCRIPTION_ID_KIND whose key name is the subscription id, so that adding or
+ * removing a subscription writes a single small entity and concurrent subscriptions of a device do
+ * not overwrite each other. Devices stored by previous versions keep their subscription ids as a
+ * JSON set in the PROPERTY_SUBSCRIPTION_IDS property, which is still read, and which is moved to
+ * subscription entities the next time the device subscribes. Once moved, a new subscription of
+ * the device only writes its own entity, unless the time stamp of the device is due for a refresh.
  */
 public class DeviceSubscription {
 
@@ -52,10 +64,18 @@ public class DeviceSubscription {
   private final DatastoreService datastoreService;
   private final Gson gson;
 
+  private static final BackendConfigManager backendConfigManager = new BackendConfigManager();
+
   static final String PROPERTY_DEVICE_TYPE = "DeviceType";
   static final String PROPERTY_ID = "DeviceID";
   static final String PROPERTY_SUBSCRIPTION_IDS = "SubscriptionIDs";
   static final int BATCH_DELETE_SIZE = 250;
+  static final int BATCH_GET_SIZE = 1000;
+  static final int BATCH_PUT_SIZE = 500;
+
+  // time after which a subscription writes the device again to refresh its time stamp, well
+  // within the window in which DeviceCleanupServlet considers a registration fresh
+  private static final long TIMESTAMP_REFRESH_INTERVAL_MS = 60 * 60 * 1000;
 
   /**
    * Time stamp property name of the Device Subscription entity.
@@ -68,6 +88,11 @@ public class DeviceSubscription {
    */
   public static final String SUBSCRIPTION_KIND = "_DeviceSubscription";
 
+  /**
+   * Subscription entity name. Subscription entities are children of device subscription entities.
+   */
+  public static final String SUBSCRIPTION_ID_KIND = "_DeviceSubscriptionId";
+
   /**
    * Default constructor for DeviceSubscription class.
    */
@@ -119,6 +144,45 @@ public class DeviceSubscription {
     return entity;
   }
 
+  /**
+   * Returns the entities with device subscription information of the provided devices, read from
+   * memcache, and from datastore for the devices that are not in memcache, in batches.
+   *
+   * @param deviceIds Unique device identifiers
+   * @return a map from device id to entity, without the devices for which no information is found
+   */
+  public Map<String, Entity> getAll(Collection<String> deviceIds) {
+    Map<Key, String> deviceIdsByKey = new HashMap<Key, String>();
+    for (String deviceId : deviceIds) {
+      deviceIdsByKey.put(getKey(deviceId), deviceId);
+    }
+    List<Key> keys = new ArrayList<Key>(deviceIdsByKey.keySet());
+    Map<String, Entity> entities = new HashMap<String, Entity>();
+
+    for (int from = 0; from < keys.size(); from += BATCH_GET_SIZE) {
+      List<Key> batch = keys.subList(from, Math.min(keys.size(), from + BATCH_GET_SIZE));
+      List<Key> missingKeys = new ArrayList<Key>();
+      Map<Key, Object> cached = this.memcacheService.getAll(batch);
+      for (Key key : batch) {
+        Object entity = cached.get(key);
+        if (entity instanceof Entity) {
+          entities.put(deviceIdsByKey.get(key), (Entity) entity);
+        } else {
+          missingKeys.add(key);
+        }
+      }
+
+      // Get from datastore the entities that are not cached
+      if (!missingKeys.isEmpty()) {
+        for (Entity entity : this.datastoreService.get(missingKeys).values()) {
+          entities.put(deviceIdsByKey.get(entity.getKey()), entity);
+        }
+      }
+    }
+
+    return entities;
+  }
+
   /**
    * Returns a set of subscriptions subscribed from the device.
    *
@@ -134,6 +198,35 @@ public class DeviceSubscription {
       return new HashSet<String>();
     }
 
+    return getSubscriptionIds(Arrays.asList(deviceSubscription));
+  }
+
+  /**
+   * Returns a set of subscriptions subscribed from the devices. The queries for the subscriptions
+   * of the devices are issued together, before any of their results is read.
+   *
+   * @param deviceSubscriptions Entities with device subscription information
+   */
+  public Set<String> getSubscriptionIds(Collection<Entity> deviceSubscriptions) {
+    Set<String> subscriptionIds = new HashSet<String>();
+    List<List<Entity>> results = new ArrayList<List<Entity>>();
+    for (Entity deviceSubscription : deviceSubscriptions) {
+      subscriptionIds.addAll(getLegacySubscriptionIds(deviceSubscription));
+      Query query = new Query(SUBSCRIPTION_ID_KIND, deviceSubscription.getKey()).setKeysOnly();
+      results.add(this.datastoreService.prepare(query)
+          .asList(FetchOptions.Builder.withChunkSize(BATCH_GET_SIZE).prefetchSize(BATCH_GET_SIZE)));
+    }
+
+    for (List<Entity> result : results) {
+      for (Entity subscription : result) {
+        subscriptionIds.add(subscription.getKey().getName());
+      }
+    }
+
+    return subscriptionIds;
+  }
+
+  private Set<String> getLegacySubscriptionIds(Entity deviceSubscription) {
     String subscriptionString = (String) deviceSubscription.getProperty(PROPERTY_SUBSCRIPTION_IDS);
     if (StringUtility.isNullOrEmpty(subscriptionString)) {
       return new HashSet<String>();
@@ -156,44 +249,124 @@ public class DeviceSubscription {
       return null;
     }
 
-    Key key;
     String newDeviceId = SubscriptionUtility.extractRegId(deviceId);
-    Entity deviceSubscription = get(newDeviceId);
-    // Subscriptions is a "set" instead of a "list" to ensure uniqueness of each subscriptionId
-    // for a device
-    Set<String> subscriptions = new HashSet<String>();
-
-    if (deviceSubscription == null) {
-      // Create a brand new one
-      key = getKey(newDeviceId);
-      deviceSubscription = new Entity(key);
-      deviceSubscription.setProperty(PROPERTY_ID, newDeviceId);
-      deviceSubscription.setProperty(PROPERTY_DEVICE_TYPE, deviceType.toString());
-    } else {
-      key = deviceSubscription.getKey();
+    Key key = getKey(newDeviceId);
+    Date time = Calendar.getInstance(TimeZone.getTimeZone("UTC")).getTime();
+
+    // A device entity is only cached once the subscription ids stored by a previous version have
+    // been moved, so a cached device only needs the entity of the new subscription. So does a
+    // device read from datastore without such subscription ids. A device written before the last
+    // deletion of all subscriptions is written again, as that deletion is removing it, and so is a
+    // device whose time stamp is older than TIMESTAMP_REFRESH_INTERVAL_MS, as the time stamp tells
+    // the device cleanup that the device registered recently.
+    Entity existing = (Entity) this.memcacheService.get(key);
+    boolean cached = existing != null;
+    if (!cached) {
+      try {
+        existing = this.datastoreService.get(key);
+      } catch (EntityNotFoundException e) {
+        existing = null;
+      }
+    }
+    if (existing != null && !existing.hasProperty(PROPERTY_SUBSCRIPTION_IDS)
+        && !isWrittenBeforeDeleteAll(existing) && !isTimeStampStale(existing, time)) {
+      this.datastoreService.put(createSubscriptionEntity(key, subscriptionId, time));
+      if (!cached) {
+        this.memcacheService.put(key, existing);
+      }
+      return existing;
+    }
 
-      // Update the existing subscription list
-      String ids = (String) deviceSubscription.getProperty(PROPERTY_SUBSCRIPTION_IDS);
-      if (!StringUtility.isNullOrEmpty(ids)) {
-        subscriptions = this.gson.fromJson(ids, setType);
+    // Move the subscription ids of a device stored by a previous version to subscription entities
+    List<Entity> entities = new ArrayList<Entity>();
+    if (existing != null) {
+      for (String legacySubscriptionId : getLegacySubscriptionIds(existing)) {
+        entities.add(createSubscriptionEntity(key, legacySubscriptionId, time));
       }
     }
 
-    // Update entity subscription property and save only when subscriptionId has successfully added
-    // to the subscriptions "set".  If a subscriptionId is a duplicate of an existing subscription
-    // in the set, we don't save this duplicated value into the entity.
-    if (subscriptions.add(subscriptionId)) {
-      deviceSubscription.setProperty(PROPERTY_SUBSCRIPTION_IDS, this.gson.toJson(subscriptions));
-      Calendar time = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
-      deviceSubscription.setProperty(PROPERTY_TIMESTAMP, time.getTime());
+    // The device entity is written as a whole, as it only holds the device information and the
+    // time of its latest write.
+    Entity deviceSubscription = new Entity(key);
+    deviceSubscription.setProperty(PROPERTY_ID, newDeviceId);
+    deviceSubscription.setProperty(PROPERTY_DEVICE_TYPE, deviceType.toString());
+    deviceSubscription.setProperty(PROPERTY_TIMESTAMP, time);
+    entities.add(deviceSubscription);
+    entities.add(createSubscriptionEntity(key, subscriptionId, time));
 
-      this.datastoreService.put(deviceSubscription);
-      this.memcacheService.put(key, deviceSubscription);
-    }
+    this.datastoreService.put(entities);
+    this.memcacheService.put(key, deviceSubscription);
 
     return deviceSubscription;
   }
 
+  private boolean isTimeStampStale(Entity deviceSubscription, Date time) {
+    Date timeStamp = (Date) deviceSubscription.getProperty(PROPERTY_TIMESTAMP);
+    return timeStamp == null
+        || time.getTime() - timeStamp.getTime() > TIMESTAMP_REFRESH_INTERVAL_MS;
+  }
+
+  private boolean isWrittenBeforeDeleteAll(Entity deviceSubscription) {
+    Date lastDeleteAll = backendConfigManager.getLastSubscriptionDeleteAllTime();
+    Date timeStamp = (Date) deviceSubscription.getProperty(PROPERTY_TIMESTAMP);
+    return lastDeleteAll != null && (timeStamp == null || !timeStamp.after(lastDeleteAll));
+  }
+
+  /**
+   * Creates the entities of subscriptions moved from other devices, as when the registration id of
+   * a device is replaced by its canonical registration id, in batches. The devices they are moved
+   * to are created if they do not exist yet, with the type and the time stamp of the devices they
+   * are moved from.
+   *
+   * @param fromDevices map from device id to entity of the devices the subscriptions are moved from
+   * @param newDeviceIds map from the id of each of these devices to the id it is moved to
+   * @param subscriptionIds the moved subscription ids, with the ids of the new devices
+   */
+  void createMovedSubscriptions(Map<String, Entity> fromDevices, Map<String, String> newDeviceIds,
+      Collection<String> subscriptionIds) {
+    Map<String, Entity> toDevices = getAll(newDeviceIds.values());
+    List<Entity> entities = new ArrayList<Entity>();
+    for (Map.Entry<String, Entity> e : fromDevices.entrySet()) {
+      String newDeviceId = newDeviceIds.get(e.getKey());
+      if (toDevices.containsKey(newDeviceId)) {
+        continue;
+      }
+      Entity deviceSubscription = new Entity(getKey(newDeviceId));
+      deviceSubscription.setProperty(PROPERTY_ID, newDeviceId);
+      deviceSubscription.setProperty(PROPERTY_DEVICE_TYPE,
+          e.getValue().getProperty(PROPERTY_DEVICE_TYPE));
+      deviceSubscription.setProperty(PROPERTY_TIMESTAMP,
+          e.getValue().getProperty(PROPERTY_TIMESTAMP));
+      toDevices.put(newDeviceId, deviceSubscription);
+      entities.add(deviceSubscription);
+    }
+
+    Date time = Calendar.getInstance(TimeZone.getTimeZone("UTC")).getTime();
+    for (String subscriptionId : subscriptionIds) {
+      entities.add(createSubscriptionEntity(
+          getKey(SubscriptionUtility.extractRegId(subscriptionId)), subscriptionId, time));
+    }
+    for (int from = 0; from < entities.size(); from += BATCH_PUT_SIZE) {
+      this.datastoreService.put(entities.subList(from,
+          Math.min(entities.size(), from + BATCH_PUT_SIZE)));
+    }
+  }
+
+  private Entity createSubscriptionEntity(Key deviceKey, String subscriptionId, Date time) {
+    Entity subscription = new Entity(SUBSCRIPTION_ID_KIND, subscriptionId, deviceKey);
+    subscription.setUnindexedProperty(PROPERTY_TIMESTAMP, time);
+    return subscription;
+  }
+
+  /**
+   * Deletes the entities of subscriptions, in batches, without deleting their devices.
+   *
+   * @param subscriptionIds the subscription ids to be deleted
+   */
+  public void deleteSubscriptionIds(Collection<String> subscriptionIds) {
+    deleteSubscriptionIdsInBatches(subscriptionIds);
+  }
+
   /**
    * Deletes an entity corresponding to the provided deviceId.
    *
@@ -204,9 +377,24 @@ public class DeviceSubscription {
       throw new IllegalArgumentException("deviceId cannot be null or empty.");
     }
 
-    Key key = getKey(deviceId);
-    this.datastoreService.delete(key);
-    this.memcacheService.delete(key);
+    deleteAll(Arrays.asList(deviceId), getSubscriptionIds(deviceId));
+  }
+
+  /**
+   * Deletes the entities corresponding to the provided deviceIds and subscriptionIds, in batches.
+   *
+   * @param deviceIds the device ids for which all subscription information are to be deleted
+   * @param subscriptionIds the subscription ids of these devices
+   */
+  public void deleteAll(Collection<String> deviceIds, Collection<String> subscriptionIds) {
+    List<Key> keys = new ArrayList<Key>();
+    for (String deviceId : deviceIds) {
+      keys.add(getKey(deviceId));
+    }
+    for (int from = 0; from < keys.size(); from += BATCH_DELETE_SIZE) {
+      deleteInBatch(keys.subList(from, Math.min(keys.size(), from + BATCH_DELETE_SIZE)));
+    }
+    deleteSubscriptionIdsInBatches(subscriptionIds);
   }
 
   private void deleteInBatch(List<Key> keys) {
@@ -214,6 +402,17 @@ public class DeviceSubscription {
     this.datastoreService.delete(keys);
   }
 
+  private void deleteSubscriptionIdsInBatches(Collection<String> subscriptionIds) {
+    List<Key> keys = new ArrayList<Key>();
+    for (String subscriptionId : subscriptionIds) {
+      keys.add(getSubscriptionKey(subscriptionId));
+    }
+    for (int from = 0; from < keys.size(); from += BATCH_DELETE_SIZE) {
+      this.datastoreService.delete(keys.subList(from,
+          Math.min(keys.size(), from + BATCH_DELETE_SIZE)));
+    }
+  }
+
   /**
    * Deletes all device subscription entities continuously using task push queue.
    *
@@ -240,17 +439,18 @@ public class DeviceSubscription {
     }
 
     entities = this.datastoreService.prepare(queryAll).asQueryResultIterable(options);
+    List<Entity> deviceSubscriptions = new ArrayList<Entity>();
     if (entities != null && entities.iterator() != null) {
       for (Entity entity : entities) {
         keys.add(entity.getKey());
-        String[] ids = new Gson().fromJson((String) entity.getProperty(PROPERTY_SUBSCRIPTION_IDS),
-            String[].class);
-        subIds.addAll(Arrays.asList(ids));
+        deviceSubscriptions.add(entity);
       }
     }
+    subIds.addAll(getSubscriptionIds(deviceSubscriptions));
 
     if (keys.size() > 0) {
       deleteInBatch(keys);
+      deleteSubscriptionIdsInBatches(subIds);
       enqueueDeleteDeviceSubscription(time, entities.iterator().getCursor().toWebSafeString());
     }
     if (subIds.size() > 0) {
@@ -263,7 +463,10 @@ public class DeviceSubscription {
    *
    * @param subIds A list of Prospective Search Api subscription ids to be deleted.
    */
-  private void deletePsiSubscriptions(List<String> subIds) {
+  void deletePsiSubscriptions(List<String> subIds) {
+    if (subIds.isEmpty()) {
+      return;
+    }
     int size;
     int current = 0;
     do {
@@ -311,4 +514,18 @@ public class DeviceSubscription {
       return KeyFactory.createKey(SUBSCRIPTION_KIND, deviceId);
     }
   }
+
+  /**
+   * Gets a key for subscription id kind entity based on subscription id. The parent key is the key
+   * of the device the subscription id belongs to.
+   *
+   * @param subscriptionId A subscription identifier
+   */
+  protected Key getSubscriptionKey(String subscriptionId) {
+    if (StringUtility.isNullOrEmpty(subscriptionId)) {
+      throw new IllegalArgumentException("subscriptionId cannot be null or empty");
+    }
+    return KeyFactory.createKey(getKey(SubscriptionUtility.extractRegId(subscriptionId)),
+        SUBSCRIPTION_ID_KIND, subscriptionId);
+  }
 }
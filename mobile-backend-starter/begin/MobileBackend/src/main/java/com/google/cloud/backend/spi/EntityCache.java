@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.spi;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.cloud.backend.config.LocalCache;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Per-instance cache of CloudEntities that sits in front of Memcache.
+ *
+ * Each cached entity is tagged with the generation of its kind. Generations are counters kept in
+ * Memcache and bumped on every write to the kind, so a write on any instance invalidates the
+ * local copies on all the others. Each instance re-reads the generations at most once per
+ * {@link #GENERATION_CHECK_INTERVAL_MS}, which bounds how long a remote write can go unnoticed.
+ *
+ * Entities of private kinds are never cached, the same as with Memcache.
+ */
+class EntityCache {
+
+  private static final int MAX_ENTRIES = 2000;
+
+  private static final long ENTRY_TTL_MS = 60 * 1000;
+
+  private static final long GENERATION_CHECK_INTERVAL_MS = 1000;
+
+  private static final String MEMCACHE_KEY_PREFIX_GENERATION = "_KindGeneration:";
+
+  private static final String MEMCACHE_KEY_PREFIX_WRITE_TIME = "_KindWriteTime:";
+
+  private static final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+  private static final EntityCache _instance = new EntityCache();
+
+  private final LocalCache<Key, CachedEntity> entities =
+      new LocalCache<Key, CachedEntity>(MAX_ENTRIES, ENTRY_TTL_MS);
+
+  private final ConcurrentMap<String, KindGeneration> generations =
+      new ConcurrentHashMap<String, KindGeneration>();
+
+  /**
+   * Returns the Singleton instance.
+   */
+  static EntityCache getInstance() {
+    return _instance;
+  }
+
+  private EntityCache() {
+  }
+
+  /**
+   * Returns the current generations of the kinds of the specified keys. Generations older than
+   * {@link #GENERATION_CHECK_INTERVAL_MS} are refreshed from Memcache with a single batch get.
+   *
+   * @param keys {@link Key}s of the CloudEntities
+   * @return {@link Map} of kind name and its generation
+   */
+  Map<String, Long> getGenerations(Collection<Key> keys) {
+
+    // find the kinds that need to be checked with Memcache
+    long now = System.currentTimeMillis();
+    Map<String, Long> result = new HashMap<String, Long>();
+    Set<String> staleMemKeys = new HashSet<String>();
+    for (Key k : keys) {
+      String kindName = k.getKind();
+      if (!isCacheable(kindName) || result.containsKey(kindName)) {
+        continue;
+      }
+      KindGeneration g = generations.get(kindName);
+      if (g == null || now - g.checkedAt > GENERATION_CHECK_INTERVAL_MS) {
+        staleMemKeys.add(getMemKeyForGeneration(kindName));
+      } else {
+        result.put(kindName, g.value);
+      }
+    }
+
+    // refresh them
+    if (!staleMemKeys.isEmpty()) {
+      Map<String, Object> values = new HashMap<String, Object>(memcache.getAll(staleMemKeys));
+
+      // a counter lost by Memcache is seeded with the current time, so that it does not come back
+      // to a value that was already used. Kinds whose counter cannot be read are not cached.
+      Set<String> missingMemKeys = new HashSet<String>(staleMemKeys);
+      missingMemKeys.removeAll(values.keySet());
+      if (!missingMemKeys.isEmpty()) {
+        values.putAll(memcache.incrementAll(missingMemKeys, 0, now));
+      }
+      for (String memKey : staleMemKeys) {
+        String kindName = memKey.substring(MEMCACHE_KEY_PREFIX_GENERATION.length());
+        Number v = (Number) values.get(memKey);
+        if (v == null) {
+          generations.remove(kindName);
+          continue;
+        }
+        generations.put(kindName, new KindGeneration(v.longValue(), now));
+        result.put(kindName, v.longValue());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns copies of the cached entities for the specified keys. Entities cached under an older
+   * generation than the specified one are treated as missing.
+   *
+   * @param keys {@link Key}s of the CloudEntities
+   * @param kindGenerations generations returned by {@link #getGenerations(Collection)}
+   * @return {@link Map} of CloudEntity ID and {@link Entity}
+   */
+  Map<String, Entity> getAll(Collection<Key> keys, Map<String, Long> kindGenerations) {
+    Map<String, Entity> result = new HashMap<String, Entity>();
+    for (Key k : keys) {
+      Long generation = kindGenerations.get(k.getKind());
+      if (generation == null) {
+        continue;
+      }
+      CachedEntity ce = entities.get(k);
+      if (ce != null && ce.generation == generation) {
+        result.put(k.getName(), ce.entity.clone());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Caches copies of the specified entities. The generations must have been read before the
+   * entities were loaded, so that a concurrent write is never hidden by a newer tag.
+   *
+   * @param loaded entities loaded from Memcache or Datastore
+   * @param kindGenerations generations returned by {@link #getGenerations(Collection)}
+   */
+  void putAll(Collection<Entity> loaded, Map<String, Long> kindGenerations) {
+    for (Entity e : loaded) {
+      Long generation = kindGenerations.get(e.getKind());
+      if (generation != null) {
+        entities.put(e.getKey(), new CachedEntity(e.clone(), generation));
+      }
+    }
+  }
+
+  /**
+   * Removes the specified entities from the local cache and bumps the generations of their kinds,
+   * which invalidates the copies cached by other instances.
+   *
+   * @param keys {@link Key}s of the written CloudEntities
+   */
+  void invalidate(Collection<Key> keys) {
+
+    // remove the local copies
+    Set<String> memKeys = new HashSet<String>();
+    for (Key k : keys) {
+      if (isCacheable(k.getKind())) {
+        entities.remove(k);
+        memKeys.add(getMemKeyForGeneration(k.getKind()));
+      }
+    }
+    if (memKeys.isEmpty()) {
+      return;
+    }
+
+    // record the time of the write, see getMemKeyForWriteTime(String). It is recorded before the
+    // generations are bumped, so that a query cache that reads a new generation also reads the
+    // time of the write that bumped it.
+    long now = System.currentTimeMillis();
+    Map<String, Long> writeTimes = new HashMap<String, Long>();
+    for (String memKey : memKeys) {
+      writeTimes.put(getMemKeyForWriteTime(
+          memKey.substring(MEMCACHE_KEY_PREFIX_GENERATION.length())), now);
+    }
+    memcache.putAll(writeTimes);
+
+    // bump the generations. A counter lost by Memcache restarts from the current time, so that it
+    // does not come back to a value that was already used.
+    Map<String, Long> values = memcache.incrementAll(memKeys, 1, now);
+    for (String memKey : memKeys) {
+      String kindName = memKey.substring(MEMCACHE_KEY_PREFIX_GENERATION.length());
+      Long value = values.get(memKey);
+      if (value != null) {
+        generations.put(kindName, new KindGeneration(value, now));
+      } else {
+        generations.remove(kindName); // re-read it on the next access
+      }
+    }
+  }
+
+  private boolean isCacheable(String kindName) {
+    return !kindName.startsWith(SecurityChecker.KIND_PREFIX_PRIVATE);
+  }
+
+  /**
+   * Returns the Memcache key of the generation counter of the kind. Other caches of query results
+   * use it to be invalidated by the same writes.
+   */
+  static String getMemKeyForGeneration(String kindName) {
+    return MEMCACHE_KEY_PREFIX_GENERATION + kindName;
+  }
+
+  /**
+   * Returns the Memcache key of the time of the last write to the kind. Caches of query results
+   * use it to wait until the writes are visible to eventually consistent queries.
+   */
+  static String getMemKeyForWriteTime(String kindName) {
+    return MEMCACHE_KEY_PREFIX_WRITE_TIME + kindName;
+  }
+
+  private static class CachedEntity {
+
+    private final Entity entity;
+
+    private final long generation;
+
+    private CachedEntity(Entity entity, long generation) {
+      this.entity = entity;
+      this.generation = generation;
+    }
+  }
+
+  private static class KindGeneration {
+
+    private final long value;
+
+    private final long checkedAt;
+
+    private KindGeneration(long value, long checkedAt) {
+      this.value = value;
+      this.checkedAt = checkedAt;
+    }
+  }
+}
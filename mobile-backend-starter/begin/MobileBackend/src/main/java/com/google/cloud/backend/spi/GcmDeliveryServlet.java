@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.spi;
+
+import com.google.android.gcm.server.InvalidRequestException;
+import com.google.android.gcm.server.Message;
+import com.google.android.gcm.server.MulticastResult;
+import com.google.android.gcm.server.Result;
+import com.google.android.gcm.server.Sender;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.cloud.backend.config.BackendConfigManager;
+import com.google.cloud.backend.config.StringUtility;
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * HttpServlet for sending a GCM message to many devices with one multicast request.
+ *
+ * It is intended to be called by Push Task Queue. Tasks are enqueued by
+ * {@link #enqueueGcmDelivery(List, List)} with the devices that get the same message. Devices
+ * that GCM could not reach for now are retried by a new task after the delay GCM asked for.
+ * Devices that are not registered any more are removed in bulk, and the subscriptions of devices
+ * that have a newer registration are moved to it.
+ *
+ * The same queue also runs the flushes of the coalescing windows of {@link PushCoalescer}.
+ */
+public class GcmDeliveryServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+  private static final Logger log = Logger.getLogger(GcmDeliveryServlet.class.getName());
+  private static final Gson gson = new Gson();
+  private static final BackendConfigManager backendConfigManager = new BackendConfigManager();
+
+  // GCM accepts up to 1000 registration IDs in one multicast request
+  private static final int MAX_REG_IDS_PER_REQUEST = 1000;
+
+  // keeps the task payload below the Task Queue limit of 100 KB
+  private static final int MAX_REG_IDS_CHARS_PER_TASK = 90 * 1024;
+
+  // quotes and comma around each registration id in the task payload, once URL-encoded
+  private static final int CHARS_PER_REG_ID_SEPARATOR = 9;
+
+  private static final int GCM_SEND_RETRIES = 3;
+
+  private static final long RETRY_INITIAL_DELAY_MILLIS = 1000;
+
+  private static final String REQUEST_TYPE_SEND = "send";
+
+  private static final String REQUEST_TYPE_FLUSH = "flush";
+
+  private static final String GCM_ERROR_UNAVAILABLE = "Unavailable";
+
+  private static final String GCM_ERROR_INTERNAL_SERVER_ERROR = "InternalServerError";
+
+  private static volatile RetryAfterSender sender;
+
+  /**
+   * Enqueues tasks that send a GCM message to devices, with as many devices per task as a
+   * multicast request takes.
+   *
+   * @param queryIds client query ids that the message notifies
+   * @param regIds registration ids of the devices
+   */
+  static void enqueueGcmDelivery(List<String> queryIds, List<String> regIds) {
+    enqueueGcmDelivery(gson.toJson(queryIds), regIds, 0, 0);
+  }
+
+  private static void enqueueGcmDelivery(String queryIdsAsJson, List<String> regIds, int attempt,
+      long countdownMillis) {
+    List<TaskOptions> tasks = new ArrayList<TaskOptions>();
+    for (List<String> chunk : partition(regIds)) {
+      tasks.add(createTask(REQUEST_TYPE_SEND, chunk, countdownMillis)
+          .param("queryIds", queryIdsAsJson)
+          .param("attempt", Integer.toString(attempt)));
+    }
+    QueueFactory.getQueue("gcm-delivery").add(tasks);
+  }
+
+  /**
+   * Enqueues tasks that flush the coalescing windows of devices, see {@link PushCoalescer}.
+   *
+   * @param regIds registration ids of the devices
+   * @param countdownMillis delay before the flush
+   */
+  static void enqueueFlush(List<String> regIds, long countdownMillis) {
+    List<TaskOptions> tasks = new ArrayList<TaskOptions>();
+    for (List<String> chunk : partition(regIds)) {
+      tasks.add(createTask(REQUEST_TYPE_FLUSH, chunk, countdownMillis));
+    }
+    QueueFactory.getQueue("gcm-delivery").add(tasks);
+  }
+
+  // splits the registration ids in lists that a single task and multicast request can take
+  private static List<List<String>> partition(List<String> regIds) {
+    List<List<String>> chunks = new ArrayList<List<String>>();
+    int from = 0;
+    int chars = 0;
+    for (int i = 0; i < regIds.size(); i++) {
+      chars += regIds.get(i).length() + CHARS_PER_REG_ID_SEPARATOR;
+      if (i - from == MAX_REG_IDS_PER_REQUEST || (i > from && chars > MAX_REG_IDS_CHARS_PER_TASK)) {
+        chunks.add(regIds.subList(from, i));
+        from = i;
+        chars = regIds.get(i).length() + CHARS_PER_REG_ID_SEPARATOR;
+      }
+    }
+    if (from < regIds.size()) {
+      chunks.add(regIds.subList(from, regIds.size()));
+    }
+    return chunks;
+  }
+
+  private static TaskOptions createTask(String type, List<String> regIds, long countdownMillis) {
+    return TaskOptions.Builder.withMethod(TaskOptions.Method.POST)
+        .url("/admin/push/gcm/send")
+        .param("type", type)
+        .param("regIds", gson.toJson(regIds))
+        .countdownMillis(countdownMillis);
+  }
+
+  /**
+   * Handles the POST request from Task Queue
+   */
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    String type = req.getParameter("type");
+    if (StringUtility.isNullOrEmpty(type)) {
+      throw new IllegalArgumentException("Parameter 'type' cannot be null or empty.");
+    }
+
+    List<String> regIds = readStringList(req, "regIds");
+    if (regIds == null) {
+      return;
+    }
+
+    if (REQUEST_TYPE_FLUSH.equals(type)) {
+      PushCoalescer.getInstance().flush(regIds);
+    } else if (REQUEST_TYPE_SEND.equals(type)) {
+      List<String> queryIds = readStringList(req, "queryIds");
+      if (queryIds != null && !queryIds.isEmpty()) {
+        send(queryIds, regIds, Integer.parseInt(req.getParameter("attempt")));
+      }
+    } else {
+      throw new IllegalArgumentException("Invalid value of parameter 'type'.");
+    }
+  }
+
+  private List<String> readStringList(HttpServletRequest req, String name) {
+    String parameter = req.getParameter(name);
+    if (StringUtility.isNullOrEmpty(parameter)) {
+      log.warning("Missing '" + name + "' argument on task queue request. This indicates a bug.");
+      return null;
+    }
+    try {
+      return Arrays.asList(gson.fromJson(parameter, String[].class));
+    } catch (JsonSyntaxException e) {
+      log.warning("Invalid format of '" + name + "' argument on task queue request. "
+          + "This indicates a bug.");
+      return null;
+    }
+  }
+
+  private void send(List<String> queryIds, List<String> regIds, int attempt) throws IOException {
+    RetryAfterSender gcmSender = getSender();
+    if (gcmSender == null) {
+      log.info("GcmDeliveryServlet: GCM is not sent because the GCM key is not set");
+      return;
+    }
+
+    // The subId carries the first query id, which is all that older clients read
+    Message.Builder messageBuilder = new Message.Builder().addData(
+        SubscriptionUtility.GCM_KEY_SUBID,
+        ":" + SubscriptionUtility.GCM_TYPEID_QUERY + ":" + queryIds.get(0));
+    if (queryIds.size() > 1) {
+      messageBuilder.addData(SubscriptionUtility.GCM_KEY_QUERY_IDS, gson.toJson(queryIds));
+    }
+    Message message = messageBuilder.build();
+    MulticastResult multicastResult;
+    try {
+      multicastResult = gcmSender.sendNoRetry(message, regIds);
+    } catch (InvalidRequestException e) {
+      if (e.getHttpStatusCode() >= 500) {
+        // GCM is unavailable, try all the devices again later
+        retry(queryIds, regIds, attempt, gcmSender.getRetryAfterMillis());
+        return;
+      }
+      log.severe("GcmDeliveryServlet: GCM rejected the request: " + e.getHttpStatusCode() + " "
+          + e.getDescription());
+      return;
+    }
+
+    // results are in the order of the registration ids
+    List<String> retryRegIds = new ArrayList<String>();
+    List<String> removedRegIds = new ArrayList<String>();
+    Map<String, String> canonicalRegIds = new HashMap<String, String>();
+    List<Result> results = multicastResult.getResults();
+    for (int i = 0; i < results.size(); i++) {
+      Result r = results.get(i);
+      if (r.getMessageId() != null) {
+        // the device has a newer registration, that its subscriptions are moved to
+        if (r.getCanonicalRegistrationId() != null) {
+          canonicalRegIds.put(regIds.get(i), r.getCanonicalRegistrationId());
+        }
+      } else if (GCM_ERROR_UNAVAILABLE.equals(r.getErrorCodeName())
+          || GCM_ERROR_INTERNAL_SERVER_ERROR.equals(r.getErrorCodeName())) {
+        retryRegIds.add(regIds.get(i));
+      } else {
+        log.warning("GcmDeliveryServlet: GCM error for regId: " + regIds.get(i) + ", error: "
+            + r.getErrorCodeName());
+        removedRegIds.add(regIds.get(i));
+      }
+    }
+    log.info("GcmDeliveryServlet: GCM sent: queryIds: " + queryIds + ", success: "
+        + multicastResult.getSuccess() + ", failure: " + multicastResult.getFailure()
+        + ", canonical ids: " + multicastResult.getCanonicalIds());
+
+    if (!retryRegIds.isEmpty()) {
+      retry(queryIds, retryRegIds, attempt, gcmSender.getRetryAfterMillis());
+    }
+    if (!removedRegIds.isEmpty()) {
+      SubscriptionUtility.clearSubscriptionAndDeviceEntity(
+          new DeviceSubscription().getAll(removedRegIds).values(), true);
+    }
+    if (!canonicalRegIds.isEmpty()) {
+      SubscriptionUtility.replaceRegistrationIds(canonicalRegIds);
+    }
+  }
+
+  private void retry(List<String> queryIds, List<String> regIds, int attempt,
+      long retryAfterMillis) {
+    if (attempt + 1 >= GCM_SEND_RETRIES) {
+      log.warning("GcmDeliveryServlet: giving up sending GCM to " + regIds.size()
+          + " devices for queryIds: " + queryIds);
+      return;
+    }
+
+    // Honour the Retry-After header, otherwise back off exponentially
+    long countdownMillis = retryAfterMillis > 0 ? retryAfterMillis
+        : RETRY_INITIAL_DELAY_MILLIS << attempt;
+    enqueueGcmDelivery(gson.toJson(queryIds), regIds, attempt + 1, countdownMillis);
+  }
+
+  // returns the sender shared by all the requests, or null if the GCM key is not set
+  private static RetryAfterSender getSender() {
+    String gcmKey = backendConfigManager.getGcmKey();
+    if (gcmKey == null || gcmKey.trim().length() == 0) {
+      return null;
+    }
+    RetryAfterSender s = sender;
+    if (s == null || !s.gcmKey.equals(gcmKey)) {
+      s = new RetryAfterSender(gcmKey);
+      sender = s;
+    }
+    return s;
+  }
+
+  /**
+   * GCM {@link Sender} that keeps the Retry-After header of the last response received by the
+   * current thread.
+   */
+  private static class RetryAfterSender extends Sender {
+
+    private final String gcmKey;
+
+    private final ThreadLocal<Long> retryAfterMillis = new ThreadLocal<Long>();
+
+    private RetryAfterSender(String gcmKey) {
+      super(gcmKey);
+      this.gcmKey = gcmKey;
+    }
+
+    @Override
+    protected HttpURLConnection post(String url, String contentType, String body)
+        throws IOException {
+      HttpURLConnection conn = super.post(url, contentType, body);
+      retryAfterMillis.set(parseRetryAfter(conn.getHeaderField("Retry-After")));
+      return conn;
+    }
+
+    /**
+     * Returns the delay asked by the Retry-After header of the last response, or 0.
+     */
+    private long getRetryAfterMillis() {
+      Long millis = retryAfterMillis.get();
+      return millis == null ? 0 : millis;
+    }
+
+    // only the delay-seconds form is used by GCM
+    private static long parseRetryAfter(String retryAfter) {
+      if (retryAfter == null) {
+        return 0;
+      }
+      try {
+        return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+      } catch (NumberFormatException e) {
+        return 0;
+      }
+    }
+  }
+}
@@ -0,0 +1,485 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.spi;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Query.CompositeFilter;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.cloud.backend.beans.EntityDto;
+import com.google.cloud.backend.beans.QueryDto;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * {@link ContinuousQueryMatcher} that matches in the memory of this instance, for local runs and
+ * load tests where Prospective Search API is not available or its latency and cost are not wanted.
+ * The subscriptions are not shared between instances and are lost when the instance shuts down.
+ *
+ * The subscriptions are indexed by kind and by the predicates of their Datastore filter, so that a
+ * saved entity only looks at the subscriptions it may match:
+ * <ul>
+ * <li>a subscription with an EQ predicate is indexed by the property value in a hash index;</li>
+ * <li>one with an IN predicate is indexed by each of the values;</li>
+ * <li>one with a range predicate is indexed by its lower or upper bound in a sorted index of the
+ * property, and an entity looks up the bounds below or above its value;</li>
+ * <li>an AND is indexed by its most selective subfilter, and an OR by each of its subfilters;</li>
+ * <li>the others, such as NE, no filter or a predicate on a value that is not a number, date,
+ * string, boolean or null, are checked against every entity of the kind.</li>
+ * </ul>
+ * The candidates are then checked against the whole filter. Numbers and dates are compared as
+ * doubles and epoch time like Prospective Search API does, null only equals null, other values
+ * are compared as they are, and a multi-valued property matches if any of its values does. The
+ * matches are delivered before {@link #match(Entity)} returns.
+ */
+class InMemoryMatcher implements ContinuousQueryMatcher {
+
+  private enum IndexType {
+    EQUALITY, LOWER_BOUND, UPPER_BOUND
+  }
+
+  // a position of a subscription in the index of its kind
+  private static class IndexEntry {
+    final IndexType type;
+    final String propName;
+    final Object value;
+
+    IndexEntry(IndexType type, String propName, Object value) {
+      this.type = type;
+      this.propName = propName;
+      this.value = value;
+    }
+  }
+
+  private static class Subscription {
+    final String subId;
+    final String kindName;
+    final Filter filter;
+    final long expiresAt;
+    final List<IndexEntry> entries;
+
+    Subscription(String subId, String kindName, Filter filter, long expiresAt,
+        List<IndexEntry> entries) {
+      this.subId = subId;
+      this.kindName = kindName;
+      this.filter = filter;
+      this.expiresAt = expiresAt;
+      this.entries = entries;
+    }
+
+    boolean isExpired(long now) {
+      return expiresAt > 0 && expiresAt <= now;
+    }
+  }
+
+  // the indexes of the subscriptions of a kind. Sorted indexes are keyed by property name and
+  // value class, so that only values of the same class are compared.
+  private static class KindIndex {
+    final Map<String, Map<Object, Set<Subscription>>> equality =
+        new HashMap<String, Map<Object, Set<Subscription>>>();
+    final Map<String, TreeMap<Object, Set<Subscription>>> lowerBounds =
+        new HashMap<String, TreeMap<Object, Set<Subscription>>>();
+    final Map<String, TreeMap<Object, Set<Subscription>>> upperBounds =
+        new HashMap<String, TreeMap<Object, Set<Subscription>>>();
+    final Set<Subscription> unindexed = new LinkedHashSet<Subscription>();
+
+    boolean isEmpty() {
+      return equality.isEmpty() && lowerBounds.isEmpty() && upperBounds.isEmpty()
+          && unindexed.isEmpty();
+    }
+  }
+
+  // the normalized null value, which only equals itself
+  private static final Object NULL_VALUE = new Object();
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private final Map<String, Subscription> subscriptions = new HashMap<String, Subscription>();
+
+  private final Map<String, KindIndex> kindIndexes = new HashMap<String, KindIndex>();
+
+  @Override
+  public void subscribe(String subId, QueryDto queryDto, int durationSec) {
+    Filter filter = queryDto.getFilterDto() == null ? null
+        : queryDto.getFilterDto().compile().getDatastoreFilter();
+    List<IndexEntry> entries = filter == null ? null : findIndexEntries(filter);
+    long expiresAt = durationSec > 0 ? System.currentTimeMillis() + durationSec * 1000L : 0;
+    Subscription sub = new Subscription(subId, queryDto.getKindName(), filter, expiresAt,
+        entries == null ? Collections.<IndexEntry> emptyList() : entries);
+
+    lock.writeLock().lock();
+    try {
+      Subscription old = subscriptions.put(subId, sub);
+      if (old != null) {
+        removeFromIndex(old);
+      }
+      addToIndex(sub);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void unsubscribe(String subId) {
+    lock.writeLock().lock();
+    try {
+      Subscription sub = subscriptions.remove(subId);
+      if (sub == null) {
+        throw new IllegalArgumentException("No subscription with id: " + subId);
+      }
+      removeFromIndex(sub);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean isLocal() {
+    return true;
+  }
+
+  @Override
+  public void match(Entity entity) {
+    Object kindName = entity.getProperty(EntityDto.PROP_KIND_NAME);
+    if (kindName == null) {
+      kindName = entity.getKind();
+    }
+
+    // find the candidates in the indexes, and check them against their filters
+    long now = System.currentTimeMillis();
+    List<String> matchedSubIds = new ArrayList<String>();
+    List<Subscription> expired = new ArrayList<Subscription>();
+    lock.readLock().lock();
+    try {
+      KindIndex index = kindIndexes.get(kindName);
+      if (index == null) {
+        return;
+      }
+      for (Subscription sub : findCandidates(index, entity)) {
+        if (sub.isExpired(now)) {
+          expired.add(sub);
+        } else if (sub.filter == null || evaluate(sub.filter, entity)) {
+          matchedSubIds.add(sub.subId);
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    if (!expired.isEmpty()) {
+      removeExpired(expired);
+    }
+    if (!matchedSubIds.isEmpty()) {
+      ProspectiveSearchServlet.deliverMatches(matchedSubIds);
+    }
+  }
+
+  private void removeExpired(List<Subscription> expired) {
+    lock.writeLock().lock();
+    try {
+      for (Subscription sub : expired) {
+        // the subscription may have been renewed in the meantime
+        if (subscriptions.get(sub.subId) == sub) {
+          subscriptions.remove(sub.subId);
+          removeFromIndex(sub);
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private Set<Subscription> findCandidates(KindIndex index, Entity entity) {
+    Set<Subscription> candidates = new LinkedHashSet<Subscription>(index.unindexed);
+    for (Map.Entry<String, Object> prop : entity.getProperties().entrySet()) {
+      Map<Object, Set<Subscription>> eqIndex = index.equality.get(prop.getKey());
+      for (Object v : getValues(prop.getValue())) {
+        Object n = normalize(v);
+        if (!isIndexed(n)) {
+          continue;
+        }
+        if (eqIndex != null && eqIndex.containsKey(n)) {
+          candidates.addAll(eqIndex.get(n));
+        }
+        if (!isSorted(n)) {
+          continue;
+        }
+        String sortedKey = getSortedIndexKey(prop.getKey(), n);
+        TreeMap<Object, Set<Subscription>> lower = index.lowerBounds.get(sortedKey);
+        if (lower != null) {
+          for (Set<Subscription> subs : lower.headMap(n, true).values()) {
+            candidates.addAll(subs);
+          }
+        }
+        TreeMap<Object, Set<Subscription>> upper = index.upperBounds.get(sortedKey);
+        if (upper != null) {
+          for (Set<Subscription> subs : upper.tailMap(n, true).values()) {
+            candidates.addAll(subs);
+          }
+        }
+      }
+    }
+    return candidates;
+  }
+
+  private void addToIndex(Subscription sub) {
+    KindIndex index = kindIndexes.get(sub.kindName);
+    if (index == null) {
+      index = new KindIndex();
+      kindIndexes.put(sub.kindName, index);
+    }
+    if (sub.entries.isEmpty()) {
+      index.unindexed.add(sub);
+      return;
+    }
+    for (IndexEntry entry : sub.entries) {
+      Map<Object, Set<Subscription>> values;
+      if (entry.type == IndexType.EQUALITY) {
+        values = index.equality.get(entry.propName);
+        if (values == null) {
+          values = new HashMap<Object, Set<Subscription>>();
+          index.equality.put(entry.propName, values);
+        }
+      } else {
+        Map<String, TreeMap<Object, Set<Subscription>>> sorted =
+            entry.type == IndexType.LOWER_BOUND ? index.lowerBounds : index.upperBounds;
+        String sortedKey = getSortedIndexKey(entry.propName, entry.value);
+        values = sorted.get(sortedKey);
+        if (values == null) {
+          values = new TreeMap<Object, Set<Subscription>>();
+          sorted.put(sortedKey, (TreeMap<Object, Set<Subscription>>) values);
+        }
+      }
+      Set<Subscription> subs = values.get(entry.value);
+      if (subs == null) {
+        subs = new LinkedHashSet<Subscription>();
+        values.put(entry.value, subs);
+      }
+      subs.add(sub);
+    }
+  }
+
+  private void removeFromIndex(Subscription sub) {
+    KindIndex index = kindIndexes.get(sub.kindName);
+    if (index == null) {
+      return;
+    }
+    index.unindexed.remove(sub);
+    for (IndexEntry entry : sub.entries) {
+      Map<String, ? extends Map<Object, Set<Subscription>>> indexes;
+      String indexKey;
+      if (entry.type == IndexType.EQUALITY) {
+        indexes = index.equality;
+        indexKey = entry.propName;
+      } else {
+        indexes = entry.type == IndexType.LOWER_BOUND ? index.lowerBounds : index.upperBounds;
+        indexKey = getSortedIndexKey(entry.propName, entry.value);
+      }
+      Map<Object, Set<Subscription>> values = indexes.get(indexKey);
+      if (values == null || !values.containsKey(entry.value)) {
+        continue;
+      }
+      Set<Subscription> subs = values.get(entry.value);
+      subs.remove(sub);
+      if (subs.isEmpty()) {
+        values.remove(entry.value);
+        if (values.isEmpty()) {
+          indexes.remove(indexKey);
+        }
+      }
+    }
+    if (index.isEmpty()) {
+      kindIndexes.remove(sub.kindName);
+    }
+  }
+
+  /**
+   * Returns the index entries of a filter, such that every entity matching the filter is found by
+   * at least one of them, or null if the filter has to be checked against every entity.
+   */
+  private static List<IndexEntry> findIndexEntries(Filter filter) {
+    List<IndexEntry> entries = new ArrayList<IndexEntry>();
+    if (filter instanceof FilterPredicate) {
+      FilterPredicate p = (FilterPredicate) filter;
+      FilterOperator op = p.getOperator();
+      Collection<?> values = op == FilterOperator.IN ? (Collection<?>) p.getValue()
+          : Collections.singletonList(p.getValue());
+      for (Object v : values) {
+        Object n = normalize(v);
+        if (op == FilterOperator.EQUAL || op == FilterOperator.IN) {
+          if (!isIndexed(n)) {
+            return null;
+          }
+          entries.add(new IndexEntry(IndexType.EQUALITY, p.getPropertyName(), n));
+        } else if (!isSorted(n)) {
+          return null;
+        } else if (op == FilterOperator.GREATER_THAN
+            || op == FilterOperator.GREATER_THAN_OR_EQUAL) {
+          entries.add(new IndexEntry(IndexType.LOWER_BOUND, p.getPropertyName(), n));
+        } else if (op == FilterOperator.LESS_THAN || op == FilterOperator.LESS_THAN_OR_EQUAL) {
+          entries.add(new IndexEntry(IndexType.UPPER_BOUND, p.getPropertyName(), n));
+        } else {
+          return null;
+        }
+      }
+      return entries;
+    }
+
+    CompositeFilter c = (CompositeFilter) filter;
+    if (c.getOperator() == CompositeFilterOperator.OR) {
+      // every disjunct has to be indexed
+      for (Filter f : c.getSubFilters()) {
+        List<IndexEntry> sub = findIndexEntries(f);
+        if (sub == null) {
+          return null;
+        }
+        entries.addAll(sub);
+      }
+      return entries;
+    }
+
+    // any conjunct will do. Prefer equality, then the fewest entries.
+    List<IndexEntry> best = null;
+    for (Filter f : c.getSubFilters()) {
+      List<IndexEntry> sub = findIndexEntries(f);
+      if (sub != null && (best == null || isMoreSelective(sub, best))) {
+        best = sub;
+      }
+    }
+    return best;
+  }
+
+  private static boolean isMoreSelective(List<IndexEntry> a, List<IndexEntry> b) {
+    boolean aEquality = isEqualityOnly(a);
+    boolean bEquality = isEqualityOnly(b);
+    if (aEquality != bEquality) {
+      return aEquality;
+    }
+    return a.size() < b.size();
+  }
+
+  private static boolean isEqualityOnly(List<IndexEntry> entries) {
+    for (IndexEntry entry : entries) {
+      if (entry.type != IndexType.EQUALITY) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean evaluate(Filter filter, Entity entity) {
+    if (filter instanceof CompositeFilter) {
+      CompositeFilter c = (CompositeFilter) filter;
+      boolean and = c.getOperator() == CompositeFilterOperator.AND;
+      for (Filter f : c.getSubFilters()) {
+        if (evaluate(f, entity) != and) {
+          return !and;
+        }
+      }
+      return and;
+    }
+
+    FilterPredicate p = (FilterPredicate) filter;
+    if (!entity.hasProperty(p.getPropertyName())) {
+      return false;
+    }
+    for (Object v : getValues(entity.getProperty(p.getPropertyName()))) {
+      if (evaluate(p, normalize(v))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  private static boolean evaluate(FilterPredicate p, Object value) {
+    FilterOperator op = p.getOperator();
+    if (op == FilterOperator.IN) {
+      for (Object o : (Collection<?>) p.getValue()) {
+        if (normalize(o).equals(value)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    Object operand = normalize(p.getValue());
+    if (op == FilterOperator.EQUAL) {
+      return operand.equals(value);
+    } else if (op == FilterOperator.NOT_EQUAL) {
+      return !operand.equals(value);
+    }
+
+    // values of different classes are not ordered
+    if (!operand.getClass().equals(value.getClass()) || !(value instanceof Comparable)) {
+      return false;
+    }
+    int c = ((Comparable) value).compareTo(operand);
+    if (op == FilterOperator.GREATER_THAN) {
+      return c > 0;
+    } else if (op == FilterOperator.GREATER_THAN_OR_EQUAL) {
+      return c >= 0;
+    } else if (op == FilterOperator.LESS_THAN) {
+      return c < 0;
+    } else {
+      return c <= 0;
+    }
+  }
+
+  private static Collection<?> getValues(Object value) {
+    return value instanceof Collection ? (Collection<?>) value : Collections.singletonList(value);
+  }
+
+  // numbers and dates are compared as doubles, like Prospective Search API. Null is NULL_VALUE,
+  // and the other values are compared as they are.
+  private static Object normalize(Object value) {
+    if (value == null) {
+      return NULL_VALUE;
+    } else if (value instanceof Number) {
+      return ((Number) value).doubleValue();
+    } else if (value instanceof Date) {
+      return (double) ((Date) value).getTime();
+    }
+    return value;
+  }
+
+  // returns true if a normalized value is kept in the hash indexes. Values of other types, such as
+  // keys or geo points, are not indexed.
+  private static boolean isIndexed(Object normalizedValue) {
+    return normalizedValue == NULL_VALUE || isSorted(normalizedValue);
+  }
+
+  // returns true if a normalized value is kept in the sorted indexes
+  private static boolean isSorted(Object normalizedValue) {
+    return normalizedValue instanceof Double || normalizedValue instanceof String
+        || normalizedValue instanceof Boolean;
+  }
+
+  private static String getSortedIndexKey(String propName, Object normalizedValue) {
+    return propName + ":" + normalizedValue.getClass().getName();
+  }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.spi;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueConstants;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Matches saved CloudEntities with the continuous query subscribers outside of the user request.
+ *
+ * Keys of saved entities are added to the "entity-matching" pull queue. A drain task is scheduled
+ * on the "entity-matching-drain" push queue at most once per maximum delay window. It leases the
+ * keys in batches, loads the entities with a batch get and matches them with the
+ * {@link ContinuousQueryMatcher}.
+ *
+ * The batch size and the maximum delay are set by the "mobilebackend.matching.batchSize" and
+ * "mobilebackend.matching.maxDelaySec" system properties in appengine-web.xml.
+ */
+public class MatchingStage {
+
+  private static final int BATCH_SIZE = (int) Math.min(QueueConstants.maxLeaseCount(),
+      Integer.getInteger("mobilebackend.matching.batchSize", 200));
+
+  private static final int MAX_DELAY_SEC = Integer.getInteger(
+      "mobilebackend.matching.maxDelaySec", 5);
+
+  // a drain stops leasing after this time and hands over to a new drain task
+  private static final long DRAIN_TIME_BUDGET_MS = 5 * 60 * 1000;
+
+  private static final int LEASE_SEC = 60;
+
+  private static final String PARAM_KEY = "key";
+
+  private static final String PARAM_ENQUEUED_AT = "enqueuedAt";
+
+  private static final String DRAIN_URL = "/admin/matching/drain";
+
+  private static final String MEMCACHE_KEY_LAST_DRAIN_STATS = "_MatchingStage:lastDrain";
+
+  private static final Queue matchingQueue = QueueFactory.getQueue("entity-matching");
+
+  private static final Queue drainQueue = QueueFactory.getQueue("entity-matching-drain");
+
+  private static final ContinuousQueryMatcher matcher = ContinuousQueryMatcherFactory
+      .getMatcher();
+
+  private static final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+  private static final Logger log = Logger.getLogger(MatchingStage.class.getName());
+
+  private static final MatchingStage _instance = new MatchingStage();
+
+  /**
+   * Returns the Singleton instance.
+   */
+  public static MatchingStage getInstance() {
+    return _instance;
+  }
+
+  private MatchingStage() {
+  }
+
+  /**
+   * Enqueues the keys of saved CloudEntities for matching, and makes sure a drain task is
+   * scheduled within the maximum delay. The tasks are added asynchronously and in parallel, and
+   * waited for before returning. An add that failed is retried once.
+   *
+   * @param keys {@link Key}s of the saved entities
+   */
+  protected void enqueue(Collection<Key> keys) {
+    if (keys.isEmpty()) {
+      return;
+    }
+
+    // add one pull task per key, in chunks of the maximum number of tasks per add
+    String now = String.valueOf(System.currentTimeMillis());
+    List<List<TaskOptions>> chunks = new ArrayList<List<TaskOptions>>();
+    List<Future<List<TaskHandle>>> futures = new ArrayList<Future<List<TaskHandle>>>();
+    List<TaskOptions> tasks = new ArrayList<TaskOptions>();
+    for (Key k : keys) {
+      tasks.add(TaskOptions.Builder.withMethod(TaskOptions.Method.PULL)
+          .param(PARAM_KEY, KeyFactory.keyToString(k))
+          .param(PARAM_ENQUEUED_AT, now));
+      if (tasks.size() == QueueConstants.maxTasksPerAdd()) {
+        chunks.add(tasks);
+        futures.add(matchingQueue.addAsync(tasks));
+        tasks = new ArrayList<TaskOptions>();
+      }
+    }
+    if (!tasks.isEmpty()) {
+      chunks.add(tasks);
+      futures.add(matchingQueue.addAsync(tasks));
+    }
+
+    // schedule a drain for the current delay window. The task name is the same for all the saves
+    // in the window, so only the first one adds it and the others are rejected as duplicates.
+    long window = System.currentTimeMillis() / TimeUnit.SECONDS.toMillis(MAX_DELAY_SEC);
+    List<TaskOptions> drainTask = Arrays.asList(TaskOptions.Builder.withUrl(DRAIN_URL)
+        .taskName("drain-" + window)
+        .countdownMillis(TimeUnit.SECONDS.toMillis(MAX_DELAY_SEC)));
+    Future<List<TaskHandle>> drainFuture = drainQueue.addAsync(drainTask);
+
+    for (int i = 0; i < chunks.size(); i++) {
+      awaitAdd(matchingQueue, futures.get(i), chunks.get(i), false);
+    }
+    awaitAdd(drainQueue, drainFuture, drainTask, true);
+  }
+
+  // waits for an asynchronous add of tasks, and retries it once if it failed. A pull task that is
+  // added twice is matched once, as the drain skips duplicate keys. A named task that already
+  // exists has been added by another save, or by the failed add.
+  private void awaitAdd(Queue queue, Future<List<TaskHandle>> future, List<TaskOptions> tasks,
+      boolean named) {
+    try {
+      future.get();
+      return;
+    } catch (ExecutionException e) {
+      if (named && e.getCause() instanceof TaskAlreadyExistsException) {
+        return;
+      }
+      log.warning("MatchingStage: failed to add " + tasks.size() + " tasks to "
+          + queue.getQueueName() + ", retrying: " + e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    try {
+      queue.add(tasks);
+    } catch (TaskAlreadyExistsException e) {
+      if (!named) {
+        log.severe("MatchingStage: failed to add " + tasks.size() + " tasks to "
+            + queue.getQueueName() + ": " + e);
+      }
+    } catch (RuntimeException e) {
+      log.severe("MatchingStage: failed to add " + tasks.size() + " tasks to "
+          + queue.getQueueName() + ", the entities are not matched: " + e);
+    }
+  }
+
+  /**
+   * Leases batches of saved entity keys and matches the entities with the subscribers, until the
+   * queue is empty or the time budget of the drain is spent. In the latter case, another drain is
+   * scheduled to continue the work.
+   */
+  protected void drain() {
+    long startTime = System.currentTimeMillis();
+    int queueDepth = matchingQueue.fetchStatistics().getNumTasks();
+    int matchedCount = 0;
+    int lagSamples = 0;
+    long maxLagMs = 0;
+    long totalLagMs = 0;
+    long totalMatchNanos = 0;
+
+    List<TaskHandle> tasks;
+    do {
+      tasks = matchingQueue.leaseTasks(LEASE_SEC, TimeUnit.SECONDS, BATCH_SIZE);
+      if (tasks.isEmpty()) {
+        break;
+      }
+
+      // decode the keys. The same entity may have been saved several times.
+      long now = System.currentTimeMillis();
+      Set<Key> keys = new LinkedHashSet<Key>();
+      for (TaskHandle task : tasks) {
+        Map<String, String> params = extractParams(task);
+        if (params.containsKey(PARAM_KEY)) {
+          keys.add(KeyFactory.stringToKey(params.get(PARAM_KEY)));
+        }
+        if (params.containsKey(PARAM_ENQUEUED_AT)) {
+          long lagMs = now - Long.parseLong(params.get(PARAM_ENQUEUED_AT));
+          maxLagMs = Math.max(maxLagMs, lagMs);
+          totalLagMs += lagMs;
+          lagSamples++;
+        }
+      }
+
+      // load the entities with one batch get and match them. Deleted entities are skipped.
+      Map<String, Entity> entities = CrudOperations.getInstance().getAllEntitiesByKeyList(
+          new ArrayList<Key>(keys));
+      long matchStartNanos = System.nanoTime();
+      for (Entity e : entities.values()) {
+        match(e);
+      }
+      totalMatchNanos += System.nanoTime() - matchStartNanos;
+      matchedCount += entities.size();
+
+      matchingQueue.deleteTask(tasks);
+    } while (tasks.size() == BATCH_SIZE
+        && System.currentTimeMillis() - startTime < DRAIN_TIME_BUDGET_MS);
+
+    // hand over to another drain if there may be more keys
+    if (tasks.size() == BATCH_SIZE) {
+      drainQueue.add(TaskOptions.Builder.withUrl(DRAIN_URL));
+    }
+
+    // record the metrics of this drain
+    Map<String, Object> stats = new HashMap<String, Object>();
+    stats.put("queueDepth", queueDepth);
+    stats.put("matchedEntities", matchedCount);
+    stats.put("maxMatchLagMs", maxLagMs);
+    stats.put("avgMatchLagMs", lagSamples == 0 ? 0 : totalLagMs / lagSamples);
+    stats.put("avgMatchTimeMicros", matchedCount == 0 ? 0
+        : TimeUnit.NANOSECONDS.toMicros(totalMatchNanos / matchedCount));
+    stats.put("matcher", matcher.getClass().getSimpleName());
+    stats.put("drainTimeMs", System.currentTimeMillis() - startTime);
+    stats.put("finishedAt", new Date());
+    memcache.put(MEMCACHE_KEY_LAST_DRAIN_STATS, stats);
+    log.info("MatchingStage: drain: " + stats);
+  }
+
+  /**
+   * Returns the current depth of the matching queue and the metrics of the last drain.
+   */
+  @SuppressWarnings("unchecked")
+  protected Map<String, Object> getStats() {
+    Map<String, Object> stats = new HashMap<String, Object>();
+    Map<String, Object> lastDrain = (Map<String, Object>) memcache.get(
+        MEMCACHE_KEY_LAST_DRAIN_STATS);
+    if (lastDrain != null) {
+      stats.put("lastDrain", lastDrain);
+    }
+    stats.put("queueDepth", matchingQueue.fetchStatistics().getNumTasks());
+    stats.put("batchSize", BATCH_SIZE);
+    stats.put("maxDelaySec", MAX_DELAY_SEC);
+    return stats;
+  }
+
+  // matches the entity with the subscribers
+  private void match(Entity e) {
+    matcher.match(e);
+
+    // Cloud Messages are also delivered to the subscribers of their topic
+    if (TopicFanoutServlet.KIND_NAME_CLOUD_MESSAGES.equals(e.getKind())) {
+      TopicFanoutServlet.enqueuePublish(e);
+    }
+  }
+
+  private Map<String, String> extractParams(TaskHandle task) {
+    Map<String, String> params = new HashMap<String, String>();
+    try {
+      for (Entry<String, String> param : task.extractParams()) {
+        params.put(param.getKey(), param.getValue());
+      }
+    } catch (UnsupportedEncodingException e) {
+      log.warning("Ignoring a task with invalid encoding. This indicates a bug.");
+    } catch (UnsupportedOperationException e) {
+      log.warning("Ignoring a task with invalid payload. This indicates a bug.");
+    }
+    return params;
+  }
+}
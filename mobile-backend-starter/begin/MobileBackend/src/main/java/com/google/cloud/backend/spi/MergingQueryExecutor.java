@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.spi;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.QueryResultIterator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Runs the sub-queries of an IN or OR query concurrently, instead of letting Datastore run them
+ * one after another, and merges their results.
+ *
+ * All the sub-queries are started with the async Datastore service before any result is read.
+ * Each of them fetches at most the limit of the whole query in a single batch. The results are
+ * merged in the order of the sort property, or of the key if there is no sort order, the same as
+ * Datastore orders them. Entities that match several sub-queries are returned once, and the
+ * merge stops as soon as the limit is reached.
+ *
+ * Datastore returns no cursor for IN and OR queries, so a full page ends with a merged cursor of
+ * its own, which holds the position of each sub-query. The next page resumes each sub-query from
+ * its position.
+ */
+class MergingQueryExecutor {
+
+  // Datastore does not run more sub-queries than this for a single query either
+  private static final int MAX_SUB_QUERIES = 30;
+
+  private static final String MERGED_CURSOR_PREFIX = "merged:";
+
+  private static final String MERGED_CURSOR_SEPARATOR = ",";
+
+  // position of a sub-query that has no more results. A web-safe cursor never contains "~".
+  private static final String EXHAUSTED = "~";
+
+  private static final AsyncDatastoreService asyncDatastore = DatastoreServiceFactory
+      .getAsyncDatastoreService();
+
+  private static final MergingQueryExecutor _instance = new MergingQueryExecutor();
+
+  /**
+   * Returns the Singleton instance.
+   */
+  static MergingQueryExecutor getInstance() {
+    return _instance;
+  }
+
+  private MergingQueryExecutor() {
+  }
+
+  /**
+   * Returns true if a query with the specified number of sub-queries should be run by this
+   * executor.
+   */
+  boolean isApplicable(int subQueryCount) {
+    return subQueryCount > 1 && subQueryCount <= MAX_SUB_QUERIES;
+  }
+
+  /**
+   * Returns true if the cursor is a merged cursor returned by this executor.
+   */
+  static boolean isMergedCursor(String cursor) {
+    return cursor != null && cursor.startsWith(MERGED_CURSOR_PREFIX);
+  }
+
+  /**
+   * Runs the sub-queries concurrently and merges their results.
+   *
+   * @param subQueries sub-queries with the same sort order. They must be keys only if they have
+   *          no sort order, and must not be keys only otherwise, so that the sort property values
+   *          can be compared.
+   * @param startCursor merged cursor of the previous page, or null for the first page
+   * @param sortPropName name of the sort property, or null to merge by key
+   * @param sortDirection direction of the sort order
+   * @param limit maximum number of results
+   * @return the merged {@link Entity}s, without duplicates, and the merged cursor of the next page
+   * @throws IllegalArgumentException if the cursor does not belong to the sub-queries
+   */
+  MergedPage execute(List<Query> subQueries, String startCursor, String sortPropName,
+      SortDirection sortDirection, int limit) {
+    List<String> positions = parseMergedCursor(startCursor, subQueries.size());
+
+    // start all the sub-queries before reading any result
+    List<SubQuery> running = new ArrayList<SubQuery>();
+    for (int i = 0; i < subQueries.size(); i++) {
+      String position = positions.get(i);
+      if (EXHAUSTED.equals(position)) {
+        continue;
+      }
+      FetchOptions fo = FetchOptions.Builder.withLimit(limit).prefetchSize(limit)
+          .chunkSize(limit);
+      if (!position.isEmpty()) {
+        fo.startCursor(Cursor.fromWebSafeString(position));
+      }
+      running.add(new SubQuery(i, position,
+          asyncDatastore.prepare(subQueries.get(i)).asQueryResultIterator(fo)));
+    }
+
+    // k-way merge of the heads of the sub-query results
+    ResultComparator comparator = new ResultComparator(sortPropName, sortDirection);
+    PriorityQueue<Head> heads = new PriorityQueue<Head>(Math.max(1, running.size()), comparator);
+    for (SubQuery sq : running) {
+      addNextHead(heads, sq);
+    }
+    List<Entity> results = new ArrayList<Entity>();
+    Set<Key> returnedKeys = new HashSet<Key>();
+    while (!heads.isEmpty() && results.size() < limit) {
+      Head head = heads.poll();
+      if (returnedKeys.add(head.entity.getKey())) {
+        results.add(head.entity);
+      }
+      addNextHead(heads, head.subQuery);
+    }
+
+    // the next page resumes each sub-query at its unmerged head, or after its last result if it
+    // may have more than it fetched
+    if (results.size() < limit) {
+      return new MergedPage(results, null);
+    }
+    while (!heads.isEmpty() && returnedKeys.contains(heads.peek().entity.getKey())) {
+      addNextHead(heads, heads.poll().subQuery); // skip the duplicates of the last result
+    }
+    for (SubQuery sq : running) {
+      positions.set(sq.index, sq.fetched < limit ? EXHAUSTED
+          : sq.iterator.getCursor().toWebSafeString());
+    }
+    for (Head head : heads) {
+      positions.set(head.subQuery.index, head.position);
+    }
+    if (Collections.frequency(positions, EXHAUSTED) == positions.size()) {
+      return new MergedPage(results, null);
+    }
+    StringBuilder sb = new StringBuilder(MERGED_CURSOR_PREFIX);
+    for (int i = 0; i < positions.size(); i++) {
+      sb.append(i == 0 ? "" : MERGED_CURSOR_SEPARATOR).append(positions.get(i));
+    }
+    return new MergedPage(results, sb.toString());
+  }
+
+  // adds the next result of the sub-query to the heads, with the position before it
+  private void addNextHead(PriorityQueue<Head> heads, SubQuery sq) {
+    if (!sq.iterator.hasNext()) {
+      return;
+    }
+    String position = sq.fetched == 0 ? sq.startPosition
+        : sq.iterator.getCursor().toWebSafeString();
+    heads.add(new Head(sq.iterator.next(), sq, position));
+    sq.fetched++;
+  }
+
+  // returns the start position of each sub-query: a web-safe cursor, "" to start from the
+  // beginning, or EXHAUSTED
+  private List<String> parseMergedCursor(String cursor, int subQueryCount) {
+    List<String> positions = new ArrayList<String>();
+    if (cursor == null) {
+      positions.addAll(Collections.nCopies(subQueryCount, ""));
+      return positions;
+    }
+    if (isMergedCursor(cursor)) {
+      positions.addAll(Arrays.asList(cursor.substring(MERGED_CURSOR_PREFIX.length())
+          .split(MERGED_CURSOR_SEPARATOR, -1)));
+    }
+    if (positions.size() != subQueryCount) {
+      throw new IllegalArgumentException("The cursor does not belong to this query.");
+    }
+    return positions;
+  }
+
+  /**
+   * A page of merged results.
+   */
+  static class MergedPage {
+
+    private final List<Entity> entities;
+
+    private final String endCursor;
+
+    private MergedPage(List<Entity> entities, String endCursor) {
+      this.entities = entities;
+      this.endCursor = endCursor;
+    }
+
+    List<Entity> getEntities() {
+      return entities;
+    }
+
+    /**
+     * Returns the merged cursor of the next page, or null if there are no more results.
+     */
+    String getEndCursor() {
+      return endCursor;
+    }
+  }
+
+  private static class SubQuery {
+
+    private final int index;
+
+    private final String startPosition;
+
+    private final QueryResultIterator<Entity> iterator;
+
+    private int fetched;
+
+    private SubQuery(int index, String startPosition, QueryResultIterator<Entity> iterator) {
+      this.index = index;
+      this.startPosition = startPosition;
+      this.iterator = iterator;
+    }
+  }
+
+  private static class Head {
+
+    private final Entity entity;
+
+    private final SubQuery subQuery;
+
+    // position of the sub-query before this result
+    private final String position;
+
+    private Head(Entity entity, SubQuery subQuery, String position) {
+      this.entity = entity;
+      this.subQuery = subQuery;
+      this.position = position;
+    }
+  }
+
+  /**
+   * Orders results by the sort property, then by key, which is the order of Datastore.
+   */
+  private static class ResultComparator implements Comparator<Head> {
+
+    private final String sortPropName;
+
+    private final boolean isAscending;
+
+    private ResultComparator(String sortPropName, SortDirection sortDirection) {
+      this.sortPropName = sortPropName;
+      this.isAscending = sortDirection != SortDirection.DESCENDING;
+    }
+
+    @Override
+    public int compare(Head h1, Head h2) {
+      if (sortPropName != null) {
+        int c = compareValues(getSortValue(h1.entity), getSortValue(h2.entity));
+        if (c != 0) {
+          return isAscending ? c : -c;
+        }
+      }
+      return h1.entity.getKey().compareTo(h2.entity.getKey());
+    }
+
+    // Datastore sorts multi-valued properties by their smallest value in ascending order, and by
+    // their largest value in descending order
+    private Object getSortValue(Entity e) {
+      Object value = e.getProperty(sortPropName);
+      if (!(value instanceof Collection)) {
+        return value;
+      }
+      Object sortValue = null;
+      for (Object v : (Collection<?>) value) {
+        if (sortValue == null) {
+          sortValue = v;
+        } else {
+          int c = compareValues(v, sortValue);
+          if (isAscending ? c < 0 : c > 0) {
+            sortValue = v;
+          }
+        }
+      }
+      return sortValue;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private int compareValues(Object v1, Object v2) {
+      if (v1 == null || v2 == null) {
+        return v1 == null ? (v2 == null ? 0 : -1) : 1;
+      }
+      if (v1 instanceof Number && v2 instanceof Number) {
+        return Double.compare(((Number) v1).doubleValue(), ((Number) v2).doubleValue());
+      }
+      if (v1.getClass() == v2.getClass() && v1 instanceof Comparable) {
+        return ((Comparable) v1).compareTo(v2);
+      }
+
+      // values of different types are not expected in a single property
+      return v1.getClass().getName().compareTo(v2.getClass().getName());
+    }
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.spi;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.prospectivesearch.ProspectiveSearchService;
+import com.google.appengine.api.prospectivesearch.ProspectiveSearchServiceFactory;
+import com.google.cloud.backend.beans.EntityDto;
+import com.google.cloud.backend.beans.QueryDto;
+
+import java.util.Date;
+
+/**
+ * {@link ContinuousQueryMatcher} backed by Prospective Search API. The matches are delivered
+ * asynchronously by Prospective Search API to {@link ProspectiveSearchServlet}.
+ */
+class ProspectiveSearchMatcher implements ContinuousQueryMatcher {
+
+  private static final ProspectiveSearchService prosSearch = ProspectiveSearchServiceFactory
+      .getProspectiveSearchService();
+
+  @Override
+  public void subscribe(String subId, QueryDto queryDto, int durationSec) {
+    prosSearch.subscribe(QueryOperations.PROS_SEARCH_DEFAULT_TOPIC, subId, durationSec,
+        queryDto.buildProsSearchQuery(), queryDto.buildProsSearchSchema());
+  }
+
+  @Override
+  public void unsubscribe(String subId) {
+    prosSearch.unsubscribe(QueryOperations.PROS_SEARCH_DEFAULT_TOPIC, subId);
+  }
+
+  // matches the entity with the subscribers (date props converted to double on a copy)
+  @Override
+  public void match(Entity entity) {
+    Entity matched = entity.clone();
+    convertDatePropertyToEpochTime(matched, EntityDto.PROP_CREATED_AT);
+    convertDatePropertyToEpochTime(matched, EntityDto.PROP_UPDATED_AT);
+    prosSearch.match(matched, QueryOperations.PROS_SEARCH_DEFAULT_TOPIC);
+  }
+
+  @Override
+  public boolean isLocal() {
+    return false;
+  }
+
+  private void convertDatePropertyToEpochTime(Entity e, String propName) {
+    Date d = (Date) e.getProperty(propName);
+    e.setProperty(propName, Double.parseDouble(String.valueOf(d.getTime())));
+  }
+}
@@ -13,17 +13,18 @@
  */
 package com.google.cloud.backend.spi;
 
-import com.google.android.gcm.server.Message;
-import com.google.android.gcm.server.Result;
-import com.google.android.gcm.server.Sender;
 import com.google.appengine.api.datastore.Entity;
 import com.google.cloud.backend.config.BackendConfigManager;
 import com.google.cloud.backend.pushnotification.Utility;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServlet;
@@ -36,8 +37,6 @@ import javax.servlet.http.HttpServletResponse;
 @SuppressWarnings("serial")
 public class ProspectiveSearchServlet extends HttpServlet {
 
-  private static final int GCM_SEND_RETRIES = 3;
-
   private static final Logger log = Logger.getLogger(ProspectiveSearchServlet.class.getName());
 
   private static final BackendConfigManager backendConfigManager = new BackendConfigManager();
@@ -46,6 +45,17 @@ public class ProspectiveSearchServlet extends HttpServlet {
 
   @Override
   protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    deliverMatches(Arrays.asList(req.getParameterValues("id")));
+  }
+
+  /**
+   * Sends push notifications to the devices of matched subscriptions. The matches of shared
+   * subscriptions are fanned out to their subscribers by {@link SubscriptionFanoutServlet}, which
+   * then calls this method with the subscription ids of the subscribers.
+   *
+   * @param subIds matched subscription ids
+   */
+  static void deliverMatches(Collection<String> subIds) {
 
     // Return if push notification is not enabled
     if (!backendConfigManager.isPushEnabled()) {
@@ -53,26 +63,38 @@ public class ProspectiveSearchServlet extends HttpServlet {
       return;
     }
 
-    // dispatch GCM messages to each subscribers
-    String[] subIds = req.getParameterValues("id");
-    // Each subId has this format "<regId>:query:<clientSubId>"
+    // dispatch GCM messages to each subscribers. The matches of Android devices are coalesced,
+    // see PushCoalescer.
+    Map<String, Set<String>> gcmQueryIdsByRegId = new HashMap<String, Set<String>>();
+    Set<String> sharedSubIds = new HashSet<String>();
+    // Each subId has this format "<regId>:query:<clientSubId>", or "_shared:<hash>" for a shared
+    // subscription
     for (String subId : subIds) {
+      if (SharedSubscriptions.isSharedSubscriptionId(subId)) {
+        sharedSubIds.add(subId);
+        continue;
+      }
       String regId = SubscriptionUtility.extractRegId(subId);
-      if (isSubscriptionActive(regId)) {
-        sendPushNotification(regId, subId);
-      } else {
+      SubscriptionUtility.MobileType type = SubscriptionUtility.getMobileType(subId);
+      if (!isSubscriptionActive(regId)) {
         SubscriptionUtility.clearSubscriptionAndDeviceEntity(Arrays.asList(regId));
+      } else if (SubscriptionUtility.MobileType.ANDROID == type) {
+        Set<String> queryIds = gcmQueryIdsByRegId.get(regId);
+        if (queryIds == null) {
+          queryIds = new HashSet<String>();
+          gcmQueryIdsByRegId.put(regId, queryIds);
+        }
+        queryIds.add(SubscriptionUtility.extractQueryId(subId));
+      } else if (SubscriptionUtility.MobileType.IOS == type) {
+        sendIosAlert(subId, new String[] {regId});
       }
     }
-  }
-
-  private void sendPushNotification(String regId, String subId) throws IOException {
-    SubscriptionUtility.MobileType type = SubscriptionUtility.getMobileType(subId);
 
-    if (SubscriptionUtility.MobileType.ANDROID == type) {
-      sendGcmAlert(subId, regId);
-    } else if (SubscriptionUtility.MobileType.IOS == type) {
-      sendIosAlert(subId, new String[] {regId});
+    if (!gcmQueryIdsByRegId.isEmpty()) {
+      sendGcmAlerts(gcmQueryIdsByRegId);
+    }
+    for (String sharedSubId : sharedSubIds) {
+      SubscriptionFanoutServlet.fanOut(sharedSubId);
     }
   }
 
@@ -82,7 +104,7 @@ public class ProspectiveSearchServlet extends HttpServlet {
    * @param deviceId A unique device identifier
    * @return True, if subscriptions are active; False, the otherwise
    */
-  private boolean isSubscriptionActive(String deviceId) {
+  private static boolean isSubscriptionActive(String deviceId) {
     Date lastDeleteAll = backendConfigManager.getLastSubscriptionDeleteAllTime();
     // If the admin never requested to delete all subscriptions, then this device subscription is
     // still active.
@@ -100,34 +122,21 @@ public class ProspectiveSearchServlet extends HttpServlet {
     return latestSubscriptionTime.after(lastDeleteAll);
   }
 
-  private void sendGcmAlert(String subId, String regId)
-      throws IOException {
+  private static void sendGcmAlerts(Map<String, Set<String>> queryIdsByRegId) {
     String gcmKey = backendConfigManager.getGcmKey();
     boolean isGcmKeySet = !(gcmKey == null || gcmKey.trim().length() == 0);
 
     // Only attempt to send GCM if GcmKey is available
     if (isGcmKeySet) {
-      Sender sender = new Sender(gcmKey);
-      Message message = new Message.Builder().addData(SubscriptionUtility.GCM_KEY_SUBID, subId)
-          .build();
-      Result r = sender.send(message, regId, GCM_SEND_RETRIES);
-      if (r.getMessageId() != null) {
-        log.info("ProspectiveSearchServlet: GCM sent: subId: " + subId);
-      } else {
-        log.warning("ProspectiveSearchServlet: GCM error for subId: " + subId +
-            ", senderId: " + gcmKey + ", error: " + r.getErrorCodeName());
-        ArrayList<String> deviceIds = new ArrayList<String>();
-        deviceIds.add(regId);
-        SubscriptionUtility.clearSubscriptionAndDeviceEntity(deviceIds);
-      }
+      PushCoalescer.getInstance().addMatches(queryIdsByRegId);
     } else {
       // Otherwise, just write a log entry
-      log.info(String.format("ProspectiveSearchServlet: GCM is not sent: GcmKey: %s ", 
+      log.info(String.format("ProspectiveSearchServlet: GCM is not sent: GcmKey: %s ",
           isGcmKeySet));
     }
   }
 
-  private void sendIosAlert(String subId, String[] deviceTokens) {
+  private static void sendIosAlert(String subId, String[] deviceTokens) {
     log.info("Sending iOS push alert to backend");
     Utility.enqueuePushAlert(subId, deviceTokens);
     log.info("Push alert enqueued successfully");
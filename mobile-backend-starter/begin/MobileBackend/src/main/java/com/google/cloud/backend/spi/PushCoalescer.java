@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.spi;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.CasValues;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces the GCM messages sent to a device for continuous query matches, and limits the rate
+ * of the messages sent to each device.
+ *
+ * The first match for a device opens a coalescing window, and schedules a flush of the device at
+ * the end of the window. The query ids of the matches within the window are collected in a set
+ * in Memcache, which is updated with compare-and-set. The flush sends one message with all the
+ * collected query ids, if the token bucket of the device has a token. Otherwise the window stays
+ * open, and the flush is scheduled again for when the bucket gets a token. The query ids are only
+ * taken out of the window once their message is enqueued, and a window that is left open always
+ * gets another flush. As only one flush is pending for a device, the token buckets are never
+ * updated concurrently.
+ *
+ * If Memcache cannot be updated, the matches are sent right away without coalescing.
+ */
+class PushCoalescer {
+
+  private static final Logger log = Logger.getLogger(PushCoalescer.class.getName());
+
+  private static final int WINDOW_SEC = Integer.getInteger("mobilebackend.push.coalesceWindowSec",
+      5);
+
+  private static final int DEVICE_BURST = Integer.getInteger("mobilebackend.push.deviceBurst", 5);
+
+  private static final int DEVICE_PUSHES_PER_MINUTE = Integer.getInteger(
+      "mobilebackend.push.devicePushesPerMinute", 12);
+
+  private static final int MAX_CAS_ATTEMPTS = 5;
+
+  // delay of the flush of a window that could not be closed because of concurrent updates
+  private static final long RETRY_FLUSH_DELAY_MS = 1000;
+
+  private static final String MEMCACHE_KEY_PREFIX_WINDOW = "_PushWindow:";
+
+  private static final String MEMCACHE_KEY_PREFIX_BUCKET = "_PushBucket:";
+
+  private static final Expiration WINDOW_EXPIRATION = Expiration.byDeltaSeconds(60 * 60);
+
+  // an unused bucket is full again after this time, so it does not need to be kept longer
+  private static final Expiration BUCKET_EXPIRATION = Expiration
+      .byDeltaSeconds(DEVICE_BURST * 60 / DEVICE_PUSHES_PER_MINUTE + 60);
+
+  private static final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+  private static final PushCoalescer _instance = new PushCoalescer();
+
+  /**
+   * Returns the Singleton instance.
+   */
+  static PushCoalescer getInstance() {
+    return _instance;
+  }
+
+  private PushCoalescer() {
+  }
+
+  /**
+   * Adds the query ids of continuous query matches to the coalescing windows of the devices, and
+   * schedules a flush of the devices whose window is opened.
+   *
+   * @param queryIdsByRegId matched query ids by registration id of the device
+   */
+  void addMatches(Map<String, Set<String>> queryIdsByRegId) {
+    Map<String, Set<String>> pending = new HashMap<String, Set<String>>(queryIdsByRegId);
+    List<String> openedRegIds = new ArrayList<String>();
+
+    for (int attempt = 0; attempt < MAX_CAS_ATTEMPTS && !pending.isEmpty(); attempt++) {
+      Map<String, IdentifiableValue> windows = memcache.getIdentifiables(
+          getWindowMemKeys(pending.keySet()));
+      Map<String, HashSet<String>> newWindows = new HashMap<String, HashSet<String>>();
+      Map<String, CasValues> updatedWindows = new HashMap<String, CasValues>();
+      Set<String> openingMemKeys = new HashSet<String>();
+
+      for (Map.Entry<String, Set<String>> e : new ArrayList<Map.Entry<String, Set<String>>>(
+          pending.entrySet())) {
+        String memKey = MEMCACHE_KEY_PREFIX_WINDOW + e.getKey();
+        IdentifiableValue window = windows.get(memKey);
+        HashSet<String> queryIds = window == null ? null : getQueryIds(window);
+        if (queryIds == null) {
+          newWindows.put(memKey, new HashSet<String>(e.getValue()));
+          openingMemKeys.add(memKey);
+        } else if (!queryIds.containsAll(e.getValue())) {
+          HashSet<String> newQueryIds = new HashSet<String>(queryIds);
+          newQueryIds.addAll(e.getValue());
+          updatedWindows.put(memKey, new CasValues(window, newQueryIds, WINDOW_EXPIRATION));
+          if (queryIds.isEmpty()) {
+            openingMemKeys.add(memKey);
+          }
+        } else {
+          // the window already holds the matches
+          pending.remove(e.getKey());
+        }
+      }
+
+      Set<String> storedMemKeys = new HashSet<String>();
+      if (!newWindows.isEmpty()) {
+        storedMemKeys.addAll(memcache.putAll(newWindows, WINDOW_EXPIRATION,
+            SetPolicy.ADD_ONLY_IF_NOT_PRESENT));
+      }
+      if (!updatedWindows.isEmpty()) {
+        storedMemKeys.addAll(memcache.putIfUntouched(updatedWindows));
+      }
+      for (String memKey : storedMemKeys) {
+        String regId = memKey.substring(MEMCACHE_KEY_PREFIX_WINDOW.length());
+        pending.remove(regId);
+        if (openingMemKeys.contains(memKey)) {
+          openedRegIds.add(regId);
+        }
+      }
+    }
+
+    if (!openedRegIds.isEmpty()) {
+      GcmDeliveryServlet.enqueueFlush(openedRegIds, WINDOW_SEC * 1000L);
+    }
+    if (!pending.isEmpty()) {
+      log.warning("PushCoalescer: sending " + pending.size()
+          + " devices without coalescing, Memcache could not be updated");
+      deliver(pending);
+    }
+  }
+
+  /**
+   * Sends the collected query ids of the devices whose token bucket has a token, and schedules
+   * another flush of the other devices.
+   *
+   * @param regIds registration ids of the devices whose window ends
+   */
+  void flush(List<String> regIds) {
+    long now = System.currentTimeMillis();
+    Map<String, Object> buckets = memcache.getAll(getBucketMemKeys(regIds));
+    List<String> allowedRegIds = new ArrayList<String>();
+    Map<Long, List<String>> deferredRegIds = new TreeMap<Long, List<String>>();
+    Map<String, TokenBucket> refilledBuckets = new HashMap<String, TokenBucket>();
+    for (String regId : regIds) {
+      TokenBucket bucket = refill((TokenBucket) buckets.get(MEMCACHE_KEY_PREFIX_BUCKET + regId),
+          now);
+      if (bucket.tokens >= 1) {
+        allowedRegIds.add(regId);
+        refilledBuckets.put(regId, bucket);
+      } else {
+        // seconds until the bucket has a token
+        long waitSec = (long) Math.ceil((1 - bucket.tokens) * 60 / DEVICE_PUSHES_PER_MINUTE);
+        List<String> deferred = deferredRegIds.get(waitSec);
+        if (deferred == null) {
+          deferred = new ArrayList<String>();
+          deferredRegIds.put(waitSec, deferred);
+        }
+        deferred.add(regId);
+      }
+    }
+
+    // send the query ids of the windows, then take them out of the windows, which closes them
+    Set<String> sentRegIds = sendWindows(allowedRegIds);
+
+    Map<String, TokenBucket> consumedBuckets = new HashMap<String, TokenBucket>();
+    for (String regId : sentRegIds) {
+      TokenBucket bucket = refilledBuckets.get(regId);
+      consumedBuckets.put(MEMCACHE_KEY_PREFIX_BUCKET + regId,
+          new TokenBucket(bucket.tokens - 1, bucket.updatedAt));
+    }
+    memcache.putAll(consumedBuckets, BUCKET_EXPIRATION);
+
+    for (Map.Entry<Long, List<String>> e : deferredRegIds.entrySet()) {
+      GcmDeliveryServlet.enqueueFlush(e.getValue(), e.getKey() * 1000);
+    }
+  }
+
+  // sends the query ids of the windows, and then removes them from the windows with
+  // compare-and-set. A window is only changed once its message is enqueued, so that a retried
+  // flush sends it rather than losing it. A window that got more query ids meanwhile stays open
+  // and is flushed at the end of a new window, and one that could not be updated is flushed again
+  // shortly, so that every open window has a pending flush. Returns the devices sent to.
+  private Set<String> sendWindows(List<String> regIds) {
+    Map<String, IdentifiableValue> windows = memcache.getIdentifiables(getWindowMemKeys(regIds));
+    Map<String, Set<String>> sentQueryIds = new HashMap<String, Set<String>>();
+    Map<String, Set<String>> queryIdsByRegId = new HashMap<String, Set<String>>();
+    for (Map.Entry<String, IdentifiableValue> e : windows.entrySet()) {
+      HashSet<String> queryIds = getQueryIds(e.getValue());
+      if (queryIds != null && !queryIds.isEmpty()) {
+        sentQueryIds.put(e.getKey(), queryIds);
+        queryIdsByRegId.put(e.getKey().substring(MEMCACHE_KEY_PREFIX_WINDOW.length()), queryIds);
+      }
+    }
+    deliver(queryIdsByRegId);
+
+    Set<String> pendingMemKeys = new HashSet<String>(sentQueryIds.keySet());
+    List<String> reopenedRegIds = new ArrayList<String>();
+    for (int attempt = 0; attempt < MAX_CAS_ATTEMPTS && !pendingMemKeys.isEmpty(); attempt++) {
+      if (attempt > 0) {
+        windows = memcache.getIdentifiables(pendingMemKeys);
+      }
+      Map<String, CasValues> closedWindows = new HashMap<String, CasValues>();
+      Map<String, HashSet<String>> remainingQueryIds = new HashMap<String, HashSet<String>>();
+      for (String memKey : pendingMemKeys) {
+        IdentifiableValue window = windows.get(memKey);
+        if (window == null || getQueryIds(window) == null) {
+          continue;
+        }
+        HashSet<String> remaining = new HashSet<String>(getQueryIds(window));
+        remaining.removeAll(sentQueryIds.get(memKey));
+        closedWindows.put(memKey, new CasValues(window, remaining, WINDOW_EXPIRATION));
+        remainingQueryIds.put(memKey, remaining);
+      }
+
+      // windows that are gone have nothing left to send
+      pendingMemKeys.retainAll(closedWindows.keySet());
+      for (String memKey : memcache.putIfUntouched(closedWindows)) {
+        pendingMemKeys.remove(memKey);
+        if (!remainingQueryIds.get(memKey).isEmpty()) {
+          reopenedRegIds.add(memKey.substring(MEMCACHE_KEY_PREFIX_WINDOW.length()));
+        }
+      }
+    }
+
+    if (!reopenedRegIds.isEmpty()) {
+      GcmDeliveryServlet.enqueueFlush(reopenedRegIds, WINDOW_SEC * 1000L);
+    }
+    if (!pendingMemKeys.isEmpty()) {
+      log.warning("PushCoalescer: could not close the windows of " + pendingMemKeys.size()
+          + " devices, flushing them again");
+      List<String> retriedRegIds = new ArrayList<String>();
+      for (String memKey : pendingMemKeys) {
+        retriedRegIds.add(memKey.substring(MEMCACHE_KEY_PREFIX_WINDOW.length()));
+      }
+      GcmDeliveryServlet.enqueueFlush(retriedRegIds, RETRY_FLUSH_DELAY_MS);
+    }
+    return queryIdsByRegId.keySet();
+  }
+
+  // sends one message to each device, with multicast requests for the devices with the same ids
+  private void deliver(Map<String, Set<String>> queryIdsByRegId) {
+    Map<List<String>, List<String>> regIdsByQueryIds = new HashMap<List<String>, List<String>>();
+    for (Map.Entry<String, Set<String>> e : queryIdsByRegId.entrySet()) {
+      List<String> queryIds = new ArrayList<String>(new TreeSet<String>(e.getValue()));
+      List<String> regIds = regIdsByQueryIds.get(queryIds);
+      if (regIds == null) {
+        regIds = new ArrayList<String>();
+        regIdsByQueryIds.put(queryIds, regIds);
+      }
+      regIds.add(e.getKey());
+    }
+    for (Map.Entry<List<String>, List<String>> e : regIdsByQueryIds.entrySet()) {
+      GcmDeliveryServlet.enqueueGcmDelivery(e.getKey(), e.getValue());
+    }
+  }
+
+  private TokenBucket refill(TokenBucket bucket, long now) {
+    if (bucket == null) {
+      return new TokenBucket(DEVICE_BURST, now);
+    }
+    double tokens = bucket.tokens
+        + (now - bucket.updatedAt) * DEVICE_PUSHES_PER_MINUTE / 60000.0;
+    return new TokenBucket(Math.min(DEVICE_BURST, tokens), now);
+  }
+
+  @SuppressWarnings("unchecked")
+  private HashSet<String> getQueryIds(IdentifiableValue window) {
+    return (HashSet<String>) window.getValue();
+  }
+
+  private List<String> getWindowMemKeys(Collection<String> regIds) {
+    List<String> memKeys = new ArrayList<String>();
+    for (String regId : regIds) {
+      memKeys.add(MEMCACHE_KEY_PREFIX_WINDOW + regId);
+    }
+    return memKeys;
+  }
+
+  private List<String> getBucketMemKeys(Collection<String> regIds) {
+    List<String> memKeys = new ArrayList<String>();
+    for (String regId : regIds) {
+      memKeys.add(MEMCACHE_KEY_PREFIX_BUCKET + regId);
+    }
+    return memKeys;
+  }
+
+  private static class TokenBucket implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final double tokens;
+
+    private final long updatedAt;
+
+    private TokenBucket(double tokens, long updatedAt) {
+      this.tokens = tokens;
+      this.updatedAt = updatedAt;
+    }
+  }
+}
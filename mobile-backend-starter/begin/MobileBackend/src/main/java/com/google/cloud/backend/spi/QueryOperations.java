@@ -13,27 +13,39 @@
  */
 package com.google.cloud.backend.spi;
 
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.PropertyProjection;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.Filter;
 import com.google.appengine.api.datastore.Query.SortDirection;
-import com.google.appengine.api.prospectivesearch.FieldType;
-import com.google.appengine.api.prospectivesearch.ProspectiveSearchService;
-import com.google.appengine.api.prospectivesearch.ProspectiveSearchServiceFactory;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.RawValue;
 import com.google.appengine.api.users.User;
 import com.google.cloud.backend.beans.EntityDto;
 import com.google.cloud.backend.beans.EntityListDto;
 import com.google.cloud.backend.beans.FilterDto;
 import com.google.cloud.backend.beans.QueryDto;
 import com.google.cloud.backend.beans.QueryDto.Scope;
+import com.google.cloud.backend.config.LocalCache;
 import com.google.cloud.backend.config.StringUtility;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 
 /**
@@ -50,10 +62,42 @@ public class QueryOperations {
   // by default subscription will not expire, which is indicated with a duration of 0 second
   private static final int PROS_SEARCH_DURATION_SEC = 0;
 
+  // maximum number of entities returned by one query, whatever the limit requested by the client
+  private static final int MAX_PAGE_SIZE = Integer.getInteger("mobilebackend.query.maxPageSize",
+      500);
+
+  // whether the sub-queries of IN and OR filters are run concurrently by MergingQueryExecutor
+  private static final boolean PARALLEL_MERGE_ENABLED = Boolean
+      .getBoolean("mobilebackend.query.parallelMerge");
+
+  // types of the meta properties, which are known even though projections return raw values
+  private static final Map<String, Class<?>> PROJECTED_META_PROPERTY_TYPES =
+      new HashMap<String, Class<?>>();
+
+  static {
+    PROJECTED_META_PROPERTY_TYPES.put(EntityDto.PROP_CREATED_AT, Date.class);
+    PROJECTED_META_PROPERTY_TYPES.put(EntityDto.PROP_UPDATED_AT, Date.class);
+    PROJECTED_META_PROPERTY_TYPES.put(EntityDto.PROP_CREATED_BY, String.class);
+    PROJECTED_META_PROPERTY_TYPES.put(EntityDto.PROP_UPDATED_BY, String.class);
+    PROJECTED_META_PROPERTY_TYPES.put(EntityDto.PROP_OWNER, String.class);
+  }
+
+  private static final int MAX_PROJECTED_KINDS = 1000;
+
+  private static final long PROJECTED_TYPES_TTL_MS = 10 * 60 * 1000;
+
+  // the type of a property whose values have different types, see convertRawValue(RawValue, Class)
+  private static final Class<?> MIXED_TYPES = Object.class;
+
+  // types of the projected user properties by namespace and kind, see getProjectedTypes(List)
+  private static final LocalCache<String, ConcurrentMap<String, Class<?>>> projectedTypes =
+      new LocalCache<String, ConcurrentMap<String, Class<?>>>(MAX_PROJECTED_KINDS,
+          PROJECTED_TYPES_TTL_MS);
+
   private static final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
 
-  private static final ProspectiveSearchService prosSearch = ProspectiveSearchServiceFactory
-      .getProspectiveSearchService();
+  private static final ContinuousQueryMatcher matcher = ContinuousQueryMatcherFactory
+      .getMatcher();
 
   private static final Logger log = Logger.getLogger(QueryOperations.class.getCanonicalName());
 
@@ -99,49 +143,317 @@ public class QueryOperations {
     // check if kindName is not the config kinds
     SecurityChecker.getInstance().checkIfKindNameAccessible(queryDto.getKindName());
 
+    // cap the limit at the maximum page size
+    int limit = MAX_PAGE_SIZE;
+    if (queryDto.getLimit() != null && queryDto.getLimit() > 0) {
+      limit = Math.min(queryDto.getLimit(), MAX_PAGE_SIZE);
+    }
+
+    // projection queries return the properties with the keys, so there is no entity to get
+    if (queryDto.getProjectedPropertyNames() != null
+        && !queryDto.getProjectedPropertyNames().isEmpty()) {
+      return executeProjectionQuery(queryDto, user, limit);
+    }
+
+    // use the cached keys if no entity of the kind was written since the query was executed
+    QueryResultCache.Lookup lookup = QueryResultCache.getInstance().lookup(queryDto, limit);
+    List<Key> keyList = new ArrayList<Key>();
+    Map<String, Entity> resultEntities = null;
+    String endCursor = null;
+    if (lookup.isHit()) {
+      keyList = lookup.getKeys();
+      endCursor = lookup.getEndCursor();
+    } else {
+      List<Query> subQueries = createMergeSubQueries(queryDto, user);
+      if (subQueries != null) {
+        // run the sub-queries of IN and OR concurrently. Sorted sub-queries return whole
+        // entities, so there is no entity to get. The next page resumes from a merged cursor.
+        MergingQueryExecutor.MergedPage page = MergingQueryExecutor.getInstance().execute(
+            subQueries, queryDto.getStartCursor(), queryDto.getSortedPropertyName(),
+            getSortDirection(queryDto), limit);
+        endCursor = page.getEndCursor();
+        if (queryDto.getSortedPropertyName() != null) {
+          resultEntities = new HashMap<String, Entity>();
+        }
+        for (Entity e : page.getEntities()) {
+          keyList.add(e.getKey());
+          if (resultEntities != null) {
+            resultEntities.put(e.getKey().getName(), e);
+          }
+        }
+      } else {
+        QueryResultList<Entity> results = executeKeysOnlyQuery(queryDto, user, limit);
+        for (Entity e : results) {
+          keyList.add(e.getKey());
+        }
+
+        // return a cursor only if the page is full, i.e. there may be more results. Datastore
+        // may return no cursor for IN and OR queries.
+        if (results.size() == limit && results.getCursor() != null) {
+          endCursor = results.getCursor().toWebSafeString();
+        }
+      }
+      QueryResultCache.getInstance().put(lookup, keyList, endCursor);
+    }
+
+    // get entities from the keys
+    if (resultEntities == null) {
+      resultEntities = CrudOperations.getInstance().getAllEntitiesByKeyList(keyList);
+    }
+
+    // convert the Entities to CbDtos
+    EntityListDto cdl = new EntityListDto();
+    for (Key k : keyList) {
+      Entity e = resultEntities.get(k.getName());
+      if (e != null) {
+        cdl.getEntries().add(EntityDto.createFromEntity(e));
+      }
+    }
+    cdl.setEndCursor(endCursor);
+    return cdl;
+  }
+
+  private EntityListDto executeProjectionQuery(QueryDto queryDto, User user, int limit) {
     // create Query
+    Query q = SecurityChecker.getInstance().createKindQueryWithNamespace(queryDto.getKindName(),
+        user);
+    for (String propName : new LinkedHashSet<String>(queryDto.getProjectedPropertyNames())) {
+      Class<?> type = PROJECTED_META_PROPERTY_TYPES.get(propName); // null for user properties
+      q.addProjection(new PropertyProjection(propName, type));
+    }
+    QueryResultList<Entity> results = runQuery(q, queryDto, limit);
+
+    // convert the projected values, and resolve the ones that do not fit the types of their
+    // properties from their entities
+    ConcurrentMap<String, Class<?>> types = getProjectedTypes(results);
+    // rows of a multi-valued property have the same key, so entities are told apart by identity
+    Map<Entity, List<String>> unresolved = new IdentityHashMap<Entity, List<String>>();
+    for (Entity e : results) {
+      for (Map.Entry<String, Object> prop : e.getProperties().entrySet()) {
+        if (!(prop.getValue() instanceof RawValue)) {
+          continue;
+        }
+        RawValue v = (RawValue) prop.getValue();
+        Object value = convertRawValue(v, types.get(prop.getKey()));
+        if (value == null && v.getValue() != null) {
+          List<String> propNames = unresolved.get(e);
+          if (propNames == null) {
+            propNames = new ArrayList<String>();
+            unresolved.put(e, propNames);
+          }
+          propNames.add(prop.getKey());
+        } else {
+          e.setProperty(prop.getKey(), value);
+        }
+      }
+    }
+    if (!unresolved.isEmpty()) {
+      resolveRawValues(unresolved, types);
+    }
+
+    // convert the projected Entities to CbDtos
+    EntityListDto cdl = new EntityListDto();
+    for (Entity e : results) {
+      cdl.getEntries().add(EntityDto.createFromEntity(e));
+    }
+
+    // return a cursor only if the page is full, i.e. there may be more results
+    if (results.size() == limit && results.getCursor() != null) {
+      cdl.setEndCursor(results.getCursor().toWebSafeString());
+    }
+    return cdl;
+  }
+
+  // returns the sub-queries to run with MergingQueryExecutor, or null to run the query as is.
+  // Pages that follow a merged page are always merged, as they resume from a merged cursor.
+  private List<Query> createMergeSubQueries(QueryDto queryDto, User user) {
+    boolean resumed = MergingQueryExecutor.isMergedCursor(queryDto.getStartCursor());
+    if (!resumed && (!PARALLEL_MERGE_ENABLED
+        || !StringUtility.isNullOrEmpty(queryDto.getStartCursor()))) {
+      return null;
+    }
+    List<Filter> disjuncts = queryDto.getFilterDto() == null ? null
+        : queryDto.getFilterDto().getDatastoreDisjuncts();
+    if (disjuncts == null || !MergingQueryExecutor.getInstance().isApplicable(disjuncts.size())) {
+      if (resumed) {
+        throw new IllegalArgumentException("The cursor does not belong to this query.");
+      }
+      return null;
+    }
+
+    // sub-queries are merged by key if there is no sort order, so only keys are needed
+    List<Query> subQueries = new ArrayList<Query>();
+    for (Filter f : disjuncts) {
+      Query q = SecurityChecker.getInstance().createKindQueryWithNamespace(
+          queryDto.getKindName(), user);
+      q.setFilter(f);
+      if (queryDto.getSortedPropertyName() != null) {
+        q.addSort(queryDto.getSortedPropertyName(), getSortDirection(queryDto));
+      } else {
+        q.setKeysOnly();
+      }
+      subQueries.add(q);
+    }
+    return subQueries;
+  }
+
+  private SortDirection getSortDirection(QueryDto queryDto) {
+    return queryDto.isSortAscending() ? SortDirection.ASCENDING : SortDirection.DESCENDING;
+  }
+
+  // returns the types of the projected user properties of the kind of the results. Projections
+  // return raw values that do not tell dates from integers or strings from blobs, so the types
+  // are taken from an entity of the kind, which is read once per kind and cached.
+  private ConcurrentMap<String, Class<?>> getProjectedTypes(List<Entity> results) {
+    if (results.isEmpty()) {
+      return new ConcurrentHashMap<String, Class<?>>();
+    }
+    Key key = results.get(0).getKey();
+    String cacheKey = key.getNamespace() + ":" + key.getKind();
+    ConcurrentMap<String, Class<?>> types = projectedTypes.get(cacheKey);
+    if (types != null) {
+      return types;
+    }
+
+    types = new ConcurrentHashMap<String, Class<?>>();
+    Entity sample = CrudOperations.getInstance().getAllEntitiesByKeyList(
+        Collections.singletonList(key)).get(key.getName());
+    if (sample != null) {
+      for (Map.Entry<String, Object> prop : sample.getProperties().entrySet()) {
+        Class<?> type = getValueType(prop.getValue());
+        if (type != null) {
+          types.put(prop.getKey(), type);
+        }
+      }
+    }
+    projectedTypes.put(cacheKey, types);
+    return types;
+  }
+
+  // returns the type of the values of a property, MIXED_TYPES if they have different types, or null
+  // if it has none
+  private Class<?> getValueType(Object value) {
+    Collection<?> values = value instanceof Collection ? (Collection<?>) value
+        : Collections.singletonList(value);
+    Class<?> type = null;
+    for (Object v : values) {
+      if (v == null) {
+        continue;
+      }
+      if (type != null && type != v.getClass()) {
+        return MIXED_TYPES;
+      }
+      type = v.getClass();
+    }
+    return type;
+  }
+
+  // converts a projected value. Only integers, which may be dates, and byte strings, which may be
+  // strings or blobs, need the type of the property. Returns null if the value does not fit it.
+  private Object convertRawValue(RawValue v, Class<?> type) {
+    Object raw = v.getValue();
+    if (!(raw instanceof Long) && !(raw instanceof byte[])) {
+      return raw;
+    }
+    if (type != null && type != MIXED_TYPES) {
+      try {
+        return v.asType(type);
+      } catch (IllegalArgumentException e) {
+        // the property has values of different types
+      }
+    }
+    return null;
+  }
+
+  // converts the projected values that do not fit the types of their properties to the types of
+  // the values of their entities, read with a batch get. A property whose type was unknown gets
+  // the type found, and one found with another type is resolved this way from then on. Values
+  // whose entity is gone or changed are rejected rather than returned with a wrong type.
+  private void resolveRawValues(Map<Entity, List<String>> unresolved,
+      ConcurrentMap<String, Class<?>> types) {
+    Set<Key> keys = new LinkedHashSet<Key>();
+    for (Entity e : unresolved.keySet()) {
+      keys.add(e.getKey());
+    }
+    Map<String, Entity> entities = CrudOperations.getInstance().getAllEntitiesByKeyList(
+        new ArrayList<Key>(keys));
+
+    for (Map.Entry<Entity, List<String>> u : unresolved.entrySet()) {
+      Entity e = u.getKey();
+      Entity stored = entities.get(e.getKey().getName());
+      for (String propName : u.getValue()) {
+        RawValue v = (RawValue) e.getProperty(propName);
+        Object value = stored == null ? null : findStoredValue(v, stored.getProperty(propName));
+        if (value == null) {
+          throw new IllegalArgumentException("The type of the projected property " + propName
+              + " cannot be determined.");
+        }
+        Class<?> type = types.putIfAbsent(propName, value.getClass());
+        if (type != null && type != value.getClass()) {
+          types.put(propName, MIXED_TYPES);
+        }
+        e.setProperty(propName, value);
+      }
+    }
+  }
+
+  // returns the value of the stored property, or the one of its values, that the projected value
+  // is the raw value of, or null if there is none
+  private Object findStoredValue(RawValue v, Object stored) {
+    Collection<?> candidates = stored instanceof Collection ? (Collection<?>) stored
+        : Collections.singletonList(stored);
+    for (Object candidate : candidates) {
+      if (candidate == null) {
+        continue;
+      }
+      // dates are projected in microseconds, which a conversion to a date truncates
+      if (candidate instanceof Date) {
+        if (Long.valueOf(((Date) candidate).getTime() * 1000).equals(v.getValue())) {
+          return candidate;
+        }
+        continue;
+      }
+      try {
+        if (candidate.equals(v.asType(candidate.getClass()))) {
+          return candidate;
+        }
+      } catch (IllegalArgumentException e) {
+        // a value of another type
+      }
+    }
+    return null;
+  }
+
+  private QueryResultList<Entity> executeKeysOnlyQuery(QueryDto queryDto, User user, int limit) {
     Query q = SecurityChecker.getInstance().createKindQueryWithNamespace(queryDto.getKindName(),
         user);
     q.setKeysOnly();
+    return runQuery(q, queryDto, limit);
+  }
 
+  private QueryResultList<Entity> runQuery(Query q, QueryDto queryDto, int limit) {
     // set filters
     FilterDto cf = queryDto.getFilterDto();
     if (cf != null) {
-      q.setFilter(cf.getDatastoreFilter());
+      q.setFilter(cf.compile().getDatastoreFilter());
     }
 
     // add sort orders
     if (queryDto.getSortedPropertyName() != null) {
-      q.addSort(queryDto.getSortedPropertyName(),
-          queryDto.isSortAscending() ? SortDirection.ASCENDING : SortDirection.DESCENDING);
-    }
-
-    // add limit
-    FetchOptions fo;
-    if (queryDto.getLimit() != null && queryDto.getLimit() > 0) {
-      fo = FetchOptions.Builder.withLimit(queryDto.getLimit());
-    } else {
-      fo = FetchOptions.Builder.withDefaults();
+      q.addSort(queryDto.getSortedPropertyName(), getSortDirection(queryDto));
     }
 
-    // execute the query
-    List<Entity> results = datastore.prepare(q).asList(fo);
+    // add limit. A page of keys is small, so it is fetched with a single batch instead of the
+    // default batches of 20 keys.
+    FetchOptions fo = FetchOptions.Builder.withLimit(limit).prefetchSize(limit).chunkSize(limit);
 
-    // get entities from the keys
-    List<Key> keyList = new LinkedList<Key>();
-    for (Entity e : results) {
-      keyList.add(e.getKey());
+    // resume from the cursor of the previous page
+    if (!StringUtility.isNullOrEmpty(queryDto.getStartCursor())) {
+      fo.startCursor(Cursor.fromWebSafeString(queryDto.getStartCursor()));
     }
-    Map<String, Entity> resultEntities = CrudOperations.getInstance().getAllEntitiesByKeyList(
-        keyList);
 
-    // convert the Entities to CbDtos
-    EntityListDto cdl = new EntityListDto();
-    for (Entity keyOnlyEntity : results) {
-      Entity e = resultEntities.get(keyOnlyEntity.getKey().getName());
-      cdl.getEntries().add(EntityDto.createFromEntity(e));
-    }
-    return cdl;
+    // execute the query
+    return datastore.prepare(q).asQueryResultList(fo);
   }
 
   private void addQuerySubscriber(QueryDto queryDto) {
@@ -149,16 +461,28 @@ public class QueryOperations {
     String regId = queryDto.getRegId();
     String subId = SubscriptionUtility.constructSubId(regId, queryId);
 
-    // build ProsSearch query and schema
-    String query = queryDto.buildProsSearchQuery();
-    Map<String, FieldType> schema = queryDto.buildProsSearchSchema();
+    // queries for the Cloud Messages of a topic are served by the topic fan-out
+    String topicId = TopicFanoutServlet.getTopicId(queryDto);
+    if (topicId != null) {
+      TopicFanoutServlet.subscribe(subId, topicId);
+      log.info("addQuerySubscriber: topic: " + topicId);
+    } else {
+      // subscribe through the shared subscription of the query
+      int duration = queryDto.getSubscriptionDurationSec() == null ? PROS_SEARCH_DURATION_SEC
+          : queryDto.getSubscriptionDurationSec();
+      SharedSubscriptions.getInstance().subscribe(subId, queryDto, duration);
+      log.info("addQuerySubscriber: kind: " + queryDto.getKindName() + ", duration: "
+          + duration);
 
-    // subscribe
-    int duration = queryDto.getSubscriptionDurationSec() == null ? PROS_SEARCH_DURATION_SEC
-        : queryDto.getSubscriptionDurationSec();
-    prosSearch.subscribe(PROS_SEARCH_DEFAULT_TOPIC, subId, duration, query, schema);
-    log.info("addQuerySubscriber: query: " + query + ", schema: " + schema + ", duration: "
-        + duration);
+      // a device subscribed by a previous version has a subscription of its own, which is
+      // replaced by the shared subscription
+      try {
+        matcher.unsubscribe(subId);
+        log.info("addQuerySubscriber: unsubscribed " + subId + " of its own");
+      } catch (IllegalArgumentException e) {
+        // the device is not subscribed on its own
+      }
+    }
 
     // Add a deviceSubscription entity which can be pulled later for subscription id clean up
     DeviceSubscription deviceSubscription = new DeviceSubscription();
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.spi;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.cloud.backend.beans.QueryDto;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches the ordered key lists of query results in Memcache.
+ *
+ * Cache entries are keyed by a hash of the normalized query, and tagged with the generation of
+ * the queried kind that {@link EntityCache} bumps on every write. An entry is only served if its
+ * tag is still the current generation. Queries that are not ancestor queries are eventually
+ * consistent and may miss a write for a short while, so results are not cached until
+ * {@link #CONSISTENCY_WINDOW_MS} after the last write to the kind. Queries on private kinds are
+ * not cached because their results depend on the user.
+ */
+class QueryResultCache {
+
+  private static final int EXPIRATION_SEC = 10 * 60;
+
+  // time after a write during which a query may not see it yet
+  private static final long CONSISTENCY_WINDOW_MS = 5 * 1000;
+
+  private static final String MEMCACHE_KEY_PREFIX_QUERY = "_QueryResult:";
+
+  private static final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+  private static final QueryResultCache _instance = new QueryResultCache();
+
+  /**
+   * Returns the Singleton instance.
+   */
+  static QueryResultCache getInstance() {
+    return _instance;
+  }
+
+  private QueryResultCache() {
+  }
+
+  /**
+   * Looks up the cached result of the query with a single Memcache batch get of the result, and of
+   * the generation and the last write time of its kind.
+   *
+   * @param queryDto {@link QueryDto} to look up
+   * @param limit limit of the query after it was capped by the maximum page size
+   * @return {@link Lookup} that holds the cached result if there is a valid one
+   */
+  Lookup lookup(QueryDto queryDto, int limit) {
+    String kindName = queryDto.getKindName();
+    if (kindName.startsWith(SecurityChecker.KIND_PREFIX_PRIVATE)) {
+      return new Lookup(null, null, 0, null);
+    }
+
+    // get the cached result, the current generation and the time of the last write
+    String memKey = MEMCACHE_KEY_PREFIX_QUERY + DigestUtils.sha1Hex(normalize(queryDto, limit));
+    String generationMemKey = EntityCache.getMemKeyForGeneration(kindName);
+    String writeTimeMemKey = EntityCache.getMemKeyForWriteTime(kindName);
+    Map<String, Object> values = memcache.getAll(Arrays.asList(memKey, generationMemKey,
+        writeTimeMemKey));
+    Number generation = (Number) values.get(generationMemKey);
+
+    // start the generation if the kind has not been written since Memcache lost it
+    long now = System.currentTimeMillis();
+    if (generation == null) {
+      generation = memcache.increment(generationMemKey, 0, now);
+      if (generation == null) {
+        return new Lookup(null, null, 0, null);
+      }
+    }
+
+    // a write time lost by Memcache restarts the consistency window, as a write may have just
+    // happened
+    Number writeTime = (Number) values.get(writeTimeMemKey);
+    if (writeTime == null) {
+      memcache.put(writeTimeMemKey, now, null, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+      writeTime = now;
+    }
+    long cacheableAfter = writeTime.longValue() + CONSISTENCY_WINDOW_MS;
+
+    // serve the result only if no write happened since it was cached
+    CachedResult cached = (CachedResult) values.get(memKey);
+    if (cached != null && cached.generation == generation.longValue()) {
+      return new Lookup(memKey, generation.longValue(), cacheableAfter, cached);
+    }
+    return new Lookup(memKey, generation.longValue(), cacheableAfter, null);
+  }
+
+  /**
+   * Caches the result of a query that missed the cache. The result is tagged with the generation
+   * read by the lookup before the query was executed, so that a write that happened during the
+   * query makes it stale. It is not cached if the last write may not be visible to the query yet.
+   *
+   * @param lookup {@link Lookup} that missed the cache
+   * @param keys ordered {@link Key}s of the result
+   * @param endCursor cursor of the end of the result, or null
+   */
+  void put(Lookup lookup, List<Key> keys, String endCursor) {
+    if (lookup.memKey == null || System.currentTimeMillis() < lookup.cacheableAfter) {
+      return;
+    }
+    memcache.put(lookup.memKey,
+        new CachedResult(new ArrayList<Key>(keys), endCursor, lookup.generation),
+        Expiration.byDeltaSeconds(EXPIRATION_SEC));
+  }
+
+  // builds a string that is the same for all the equivalent queries
+  private String normalize(QueryDto queryDto, int limit) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(queryDto.getKindName()).append("|");
+    if (queryDto.getFilterDto() != null) {
+      sb.append(queryDto.getFilterDto().buildCanonicalString());
+    }
+    sb.append("|");
+    if (queryDto.getSortedPropertyName() != null) {
+      sb.append(queryDto.getSortedPropertyName())
+          .append(queryDto.isSortAscending() ? " ASC" : " DESC");
+    }
+    sb.append("|").append(limit).append("|");
+    if (queryDto.getStartCursor() != null) {
+      sb.append(queryDto.getStartCursor());
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Result of a lookup in the cache.
+   */
+  static class Lookup {
+
+    private final String memKey;
+
+    private final Long generation;
+
+    private final long cacheableAfter;
+
+    private final CachedResult cached;
+
+    private Lookup(String memKey, Long generation, long cacheableAfter, CachedResult cached) {
+      this.memKey = memKey;
+      this.generation = generation;
+      this.cacheableAfter = cacheableAfter;
+      this.cached = cached;
+    }
+
+    /**
+     * Returns true if a valid result was found in the cache.
+     */
+    boolean isHit() {
+      return cached != null;
+    }
+
+    List<Key> getKeys() {
+      return cached.keys;
+    }
+
+    String getEndCursor() {
+      return cached.endCursor;
+    }
+  }
+
+  private static class CachedResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ArrayList<Key> keys;
+
+    private final String endCursor;
+
+    private final long generation;
+
+    private CachedResult(ArrayList<Key> keys, String endCursor, long generation) {
+      this.keys = keys;
+      this.endCursor = endCursor;
+      this.generation = generation;
+    }
+  }
+}
@@ -22,6 +22,7 @@ import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.appengine.api.users.User;
@@ -30,10 +31,19 @@ import com.google.cloud.backend.beans.EntityDto;
 import com.google.cloud.backend.config.BackendConfigManager;
 import com.google.cloud.backend.config.BackendConfigManager.AuthMode;
 import com.google.cloud.backend.config.CloudEndpointsConfigManager;
+import com.google.cloud.backend.config.LocalCache;
 
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
 
 /**
  * Manager class that provides utility methods for access control on CloudEntities.
@@ -69,7 +79,23 @@ public class SecurityChecker {
 
   private static final BackendConfigManager backendConfigManager = new BackendConfigManager();
 
-  private static final Map<String, String> userIdCache = new HashMap<String, String>();
+  private static final int USER_ID_CACHE_MAX_ENTRIES = 10000;
+
+  private static final long USER_ID_CACHE_TTL_MS = 30 * 60 * 1000;
+
+  private static final LocalCache<String, String> userIdCache = new LocalCache<String, String>(
+      USER_ID_CACHE_MAX_ENTRIES, USER_ID_CACHE_TTL_MS);
+
+  // user IDs being loaded, so that concurrent requests for the same user wait for a single load
+  private static final ConcurrentMap<String, FutureTask<String>> userIdLoads =
+      new ConcurrentHashMap<String, FutureTask<String>>();
+
+  private static final AtomicLong userIdLoadCount = new AtomicLong();
+
+  // the metrics of the user ID cache are logged once per this number of loads
+  private static final int USER_ID_STATS_LOG_INTERVAL = 1000;
+
+  private static final Logger log = Logger.getLogger(SecurityChecker.class.getName());
 
   private SecurityChecker() {
   }
@@ -231,20 +257,55 @@ public class SecurityChecker {
     }
 
     // check if valid email is available
-    String email = u.getEmail();
+    final String email = u.getEmail();
     if (email == null || email.trim().length() == 0) {
       throw new IllegalArgumentException("Illegal email: " + email);
     }
 
     // try to find it on local cache
-    String memKey = USER_ID_PREFIX + email;
+    final String memKey = USER_ID_PREFIX + email;
     String id = userIdCache.get(memKey);
     if (id != null) {
       return id;
     }
 
+    // load it, unless another request is already loading it
+    FutureTask<String> load = new FutureTask<String>(new Callable<String>() {
+      @Override
+      public String call() {
+        return loadUserId(memKey, email);
+      }
+    });
+    FutureTask<String> runningLoad = userIdLoads.putIfAbsent(memKey, load);
+    if (runningLoad == null) {
+      try {
+        load.run();
+      } finally {
+        userIdLoads.remove(memKey);
+      }
+      runningLoad = load;
+    }
+    try {
+      return runningLoad.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(ex);
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) ex.getCause();
+      }
+      throw new IllegalStateException(ex.getCause());
+    }
+  }
+
+  // finds the user ID on memcache or Datastore, or registers the user, and caches the ID
+  private String loadUserId(String memKey, String email) {
+    if (userIdLoadCount.incrementAndGet() % USER_ID_STATS_LOG_INTERVAL == 0) {
+      log.info("SecurityChecker: user ID cache: " + getUserIdCacheStats());
+    }
+
     // try to find it on memcache
-    id = (String) memcache.get(memKey);
+    String id = (String) memcache.get(memKey);
     if (id != null) {
       userIdCache.put(memKey, id);
       return id;
@@ -256,17 +317,33 @@ public class SecurityChecker {
     Key key = KeyFactory.createKey(KIND_NAME_USERS, email);
     NamespaceManager.set(origNamespace);
 
-    // try to find it on Datastore
-    Entity e;
+    // try to find it on Datastore, and register the user in a transaction if not found, so that
+    // concurrent requests on other instances do not create different IDs
+    Transaction tx = datastore.beginTransaction();
     try {
-      e = datastore.get(key);
-      id = (String) e.getProperty(USERS_PROP_USERID);
-    } catch (EntityNotFoundException ex) {
-      // when the user has not been registered
-      e = new Entity(key);
-      id = USER_ID_PREFIX + UUID.randomUUID().toString();
-      e.setProperty(USERS_PROP_USERID, id);
-      datastore.put(e);
+      Entity e;
+      try {
+        e = datastore.get(tx, key);
+        id = (String) e.getProperty(USERS_PROP_USERID);
+      } catch (EntityNotFoundException ex) {
+        // when the user has not been registered
+        e = new Entity(key);
+        id = USER_ID_PREFIX + UUID.randomUUID().toString();
+        e.setProperty(USERS_PROP_USERID, id);
+        datastore.put(tx, e);
+      }
+      tx.commit();
+    } catch (ConcurrentModificationException ex) {
+      // another instance registered the user first
+      try {
+        id = (String) datastore.get(key).getProperty(USERS_PROP_USERID);
+      } catch (EntityNotFoundException nfe) {
+        throw new IllegalStateException(nfe);
+      }
+    } finally {
+      if (tx.isActive()) {
+        tx.rollback();
+      }
     }
 
     // put the user on memcache and local cache
@@ -275,6 +352,18 @@ public class SecurityChecker {
     return id;
   }
 
+  // returns the metrics of the user ID cache of this instance: the number of hits and misses of
+  // the local cache, and the number of loads from Memcache or Datastore. Concurrent misses for the
+  // same user share a single load.
+  private Map<String, Long> getUserIdCacheStats() {
+    Map<String, Long> stats = new HashMap<String, Long>();
+    stats.put("hits", userIdCache.getHitCount());
+    stats.put("misses", userIdCache.getMissCount());
+    stats.put("loads", userIdLoadCount.get());
+    stats.put("size", (long) userIdCache.size());
+    return stats;
+  }
+
   /**
    * Checks if the specified kind name is not one of system configuration kinds
    * and is allowed to access.
@@ -0,0 +1,549 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.spi;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.prospectivesearch.FieldType;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.cloud.backend.beans.FilterDto;
+import com.google.cloud.backend.beans.QueryDto;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonDeserializationContext;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.reflect.TypeToken;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+/**
+ * Shares one subscription of the {@link ContinuousQueryMatcher}, Prospective Search API by default,
+ * between all the devices that subscribe to the same continuous query, so that the number of
+ * subscriptions and the matching cost grow with the number of distinct queries rather than with
+ * the number of devices.
+ *
+ * The id of a shared subscription is derived from the query, its schema and the subscription
+ * duration. The devices of a shared subscription are stored as SUBSCRIBER_KIND entities keyed by
+ * the subscription id of the device, "<regId>:query:<queryId>", so that they are removed with
+ * the device without knowing the shared subscription. Each of them is assigned to one of SHARDS
+ * shards, and a match of a shared subscription is fanned out by one task per shard that has
+ * subscribers, see {@link SubscriptionFanoutServlet}. A shard that has subscribers is marked by a
+ * SHARD_KIND entity, written by its first subscriber. Markers are not removed when the shard gets
+ * empty, so that a subscriber is never left in an unmarked shard.
+ *
+ * The shared subscription is only renewed with the matcher every so often rather than for every
+ * device, and with an extra duration that covers the devices that subscribe until the next
+ * renewal. The time of the last renewal is kept in Memcache, so a matcher whose subscriptions are
+ * local to each instance is subscribed by every device instead, as the renewal on another instance
+ * does not subscribe it on this one. The subscription of each device expires on its own, at
+ * fan-out time. The query of a shared subscription is stored with each renewal as a
+ * SUBSCRIPTION_KIND entity keyed by the id of the shared subscription.
+ *
+ * When subscribers are removed, a task checks a while later, once the removal is visible to
+ * queries, whether their shared subscriptions still have subscribers, and unsubscribes the ones
+ * that have none. A device that subscribes while the check runs may not be visible to it yet, so
+ * the check is repeated after the same delay, and a shared subscription that has subscribers by
+ * then is subscribed again with its stored query.
+ */
+class SharedSubscriptions {
+
+  private static final Logger log = Logger.getLogger(SharedSubscriptions.class.getName());
+
+  static final String SHARED_SUBSCRIPTION_ID_PREFIX = "_shared:";
+
+  static final int SHARDS = Integer.getInteger("mobilebackend.push.subscriberShards", 16);
+
+  static final String SUBSCRIBER_KIND = "_SharedSubscriber";
+
+  static final String PROPERTY_SHARED_SUBSCRIPTION_ID = "SharedSubscriptionId";
+
+  static final String PROPERTY_SHARD = "Shard";
+
+  static final String PROPERTY_EXPIRES_AT = "ExpiresAt";
+
+  static final String SHARD_KIND = "_SharedSubscriberShard";
+
+  static final String SUBSCRIPTION_KIND = "_SharedSubscription";
+
+  private static final String PROPERTY_QUERY = "Query";
+
+  private static final String PROPERTY_DURATION_SEC = "DurationSec";
+
+  private static final String PROPERTY_UNSUBSCRIBED_AT = "UnsubscribedAt";
+
+  private static final int MAX_RENEWAL_INTERVAL_SEC = 10 * 60;
+
+  // maximum number of keys of a Datastore batch get
+  private static final int BATCH_GET_SIZE = 1000;
+
+  // maximum number of entities of a Datastore batch put
+  private static final int BATCH_PUT_SIZE = 500;
+
+  private static final String MEMCACHE_KEY_PREFIX_RENEWED = "_SharedSubRenewed:";
+
+  private static final String MEMCACHE_KEY_PREFIX_SHARD = "_SharedSubShard:";
+
+  // delay after which the removal of subscribers is visible to queries
+  private static final int REMOVAL_CHECK_DELAY_SEC = 60;
+
+  private static final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+  private static final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+  private static final ContinuousQueryMatcher matcher = ContinuousQueryMatcherFactory
+      .getMatcher();
+
+  // keeps the Integer, Long and Double values of filters apart, as they build different queries
+  private static final Gson gson = new GsonBuilder()
+      .registerTypeAdapter(FilterDto.class, new FilterDeserializer()).create();
+
+  private static final SharedSubscriptions _instance = new SharedSubscriptions();
+
+  /**
+   * Returns the Singleton instance.
+   */
+  static SharedSubscriptions getInstance() {
+    return _instance;
+  }
+
+  private SharedSubscriptions() {
+  }
+
+  /**
+   * Returns true if the subscription id is the id of a shared subscription.
+   */
+  static boolean isSharedSubscriptionId(String subId) {
+    return subId.startsWith(SHARED_SUBSCRIPTION_ID_PREFIX);
+  }
+
+  /**
+   * Returns the id of the shared subscription of a query. Queries whose query string, schema and
+   * duration are the same get the same id.
+   */
+  static String getSharedSubscriptionId(String query, Map<String, FieldType> schema,
+      int durationSec) {
+    StringBuilder sb = new StringBuilder(query);
+    for (Map.Entry<String, FieldType> e : new TreeMap<String, FieldType>(schema).entrySet()) {
+      sb.append('\n').append(e.getKey()).append(':').append(e.getValue());
+    }
+    sb.append('\n').append(durationSec);
+    return SHARED_SUBSCRIPTION_ID_PREFIX + DigestUtils.sha1Hex(sb.toString());
+  }
+
+  /**
+   * Returns the shard of the subscriber with the provided subscription id.
+   */
+  static int getShard(String subId) {
+    return (subId.hashCode() & Integer.MAX_VALUE) % SHARDS;
+  }
+
+  /**
+   * Returns the query for the subscribers of a shard of a shared subscription or of a topic.
+   * Queries with equality filters only are served by the built-in indexes.
+   */
+  static Query createShardQuery(String sharedSubId, int shard) {
+    return new Query(SUBSCRIBER_KIND).setFilter(CompositeFilterOperator.and(
+        new FilterPredicate(PROPERTY_SHARED_SUBSCRIPTION_ID, FilterOperator.EQUAL, sharedSubId),
+        new FilterPredicate(PROPERTY_SHARD, FilterOperator.EQUAL, shard)));
+  }
+
+  /**
+   * Returns the query for all the subscribers of a shared subscription or of a topic.
+   */
+  static Query createSubscriberQuery(String sharedSubId) {
+    return new Query(SUBSCRIBER_KIND).setFilter(
+        new FilterPredicate(PROPERTY_SHARED_SUBSCRIPTION_ID, FilterOperator.EQUAL, sharedSubId));
+  }
+
+  private static Key getShardKey(String sharedSubId, int shard) {
+    return KeyFactory.createKey(SHARD_KIND, sharedSubId + ":" + shard);
+  }
+
+  /**
+   * Returns the shards of a shared subscription or of a topic that have subscribers, with a single
+   * batch get.
+   */
+  List<Integer> getMarkedShards(String sharedSubId) {
+    List<Key> keys = new ArrayList<Key>();
+    for (int shard = 0; shard < SHARDS; shard++) {
+      keys.add(getShardKey(sharedSubId, shard));
+    }
+    Map<Key, Entity> markers = datastore.get(keys);
+    List<Integer> shards = new ArrayList<Integer>();
+    for (int shard = 0; shard < SHARDS; shard++) {
+      if (markers.containsKey(keys.get(shard))) {
+        shards.add(shard);
+      }
+    }
+    return shards;
+  }
+
+  /**
+   * Adds a device to the shared subscription of a query, and subscribes the shared subscription
+   * with the {@link ContinuousQueryMatcher} unless it has been renewed recently by a matcher shared
+   * by all the instances.
+   *
+   * @param subId subscription id of the device, "<regId>:query:<queryId>"
+   * @param queryDto the continuous query
+   * @param durationSec duration of the subscription of the device, 0 for no expiration
+   */
+  void subscribe(String subId, QueryDto queryDto, int durationSec) {
+    String query = queryDto.buildProsSearchQuery();
+    Map<String, FieldType> schema = queryDto.buildProsSearchSchema();
+    String sharedSubId = getSharedSubscriptionId(query, schema, durationSec);
+    addSubscriber(subId, sharedSubId, durationSec > 0
+        ? new Date(System.currentTimeMillis() + durationSec * 1000L) : null);
+    renew(sharedSubId, queryDto, durationSec);
+  }
+
+  // subscribes a shared subscription with the matcher and stores its query, unless it has been
+  // renewed recently. A local matcher is subscribed anyway, only the query is not stored again.
+  private void renew(String sharedSubId, QueryDto queryDto, int durationSec) {
+    // renew at least twice per duration, and subscribe for the extra time until the next renewal
+    int renewalIntervalSec = durationSec > 0
+        ? Math.max(1, Math.min(MAX_RENEWAL_INTERVAL_SEC, durationSec / 2))
+        : MAX_RENEWAL_INTERVAL_SEC;
+    String memKey = MEMCACHE_KEY_PREFIX_RENEWED + sharedSubId;
+    boolean renewed = memcache.put(memKey, Boolean.TRUE,
+        Expiration.byDeltaSeconds(renewalIntervalSec), SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    if (matcher.isLocal()) {
+      if (renewed) {
+        storeQuery(sharedSubId, queryDto, durationSec, memKey);
+      }
+      matcher.subscribe(sharedSubId, queryDto, durationSec);
+      return;
+    }
+    if (!renewed) {
+      return;
+    }
+    storeQuery(sharedSubId, queryDto, durationSec, memKey);
+    int sharedDurationSec = durationSec > 0 ? durationSec + renewalIntervalSec : durationSec;
+    try {
+      matcher.subscribe(sharedSubId, queryDto, sharedDurationSec);
+    } catch (RuntimeException e) {
+      memcache.delete(memKey);
+      throw e;
+    }
+    log.info("SharedSubscriptions: renewed " + sharedSubId + ": query: "
+        + queryDto.buildProsSearchQuery() + ", duration: " + sharedDurationSec);
+  }
+
+  private void storeQuery(String sharedSubId, QueryDto queryDto, int durationSec,
+      String memKey) {
+    Entity subscription = new Entity(SUBSCRIPTION_KIND, sharedSubId);
+    subscription.setUnindexedProperty(PROPERTY_QUERY, new Text(gson.toJson(queryDto)));
+    subscription.setUnindexedProperty(PROPERTY_DURATION_SEC, durationSec);
+    try {
+      datastore.put(subscription);
+    } catch (RuntimeException e) {
+      memcache.delete(memKey);
+      throw e;
+    }
+  }
+
+  /**
+   * Adds a device to the subscribers of a shared subscription or of a topic, see
+   * {@link TopicFanoutServlet}.
+   *
+   * @param subId subscription id of the device, "<regId>:query:<queryId>"
+   * @param sharedSubId id of the shared subscription or of the topic
+   * @param expiresAt expiration time of the subscription of the device, or null
+   */
+  void addSubscriber(String subId, String sharedSubId, Date expiresAt) {
+    Entity subscriber = createSubscriber(subId, sharedSubId, expiresAt);
+    markShards(Arrays.asList(subscriber));
+    datastore.put(subscriber);
+  }
+
+  // writes the markers of the shards of subscribers, before the subscribers, so that a fan-out
+  // that reads a subscriber also reads the marker of its shard. The marker of a shard is only
+  // written by its first subscriber, or when Memcache lost the flag that it is written.
+  private void markShards(Collection<Entity> subscribers) {
+    Map<String, Entity> markers = new HashMap<String, Entity>();
+    for (Entity subscriber : subscribers) {
+      String sharedSubId = (String) subscriber.getProperty(PROPERTY_SHARED_SUBSCRIPTION_ID);
+      int shard = ((Number) subscriber.getProperty(PROPERTY_SHARD)).intValue();
+      Entity marker = new Entity(getShardKey(sharedSubId, shard));
+      marker.setUnindexedProperty(PROPERTY_SHARED_SUBSCRIPTION_ID, sharedSubId);
+      marker.setUnindexedProperty(PROPERTY_SHARD, shard);
+      markers.put(MEMCACHE_KEY_PREFIX_SHARD + marker.getKey().getName(), marker);
+    }
+
+    Map<String, Boolean> flags = new HashMap<String, Boolean>();
+    for (String memKey : markers.keySet()) {
+      flags.put(memKey, Boolean.TRUE);
+    }
+    Set<String> newFlags = memcache.putAll(flags, null, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    if (newFlags.isEmpty()) {
+      return;
+    }
+    List<Entity> newMarkers = new ArrayList<Entity>();
+    for (String memKey : newFlags) {
+      newMarkers.add(markers.get(memKey));
+    }
+    try {
+      datastore.put(newMarkers);
+    } catch (RuntimeException e) {
+      memcache.deleteAll(newFlags);
+      throw e;
+    }
+  }
+
+  private Entity createSubscriber(String subId, String sharedSubId, Date expiresAt) {
+    Entity subscriber = new Entity(SUBSCRIBER_KIND, subId);
+    subscriber.setProperty(PROPERTY_SHARED_SUBSCRIPTION_ID, sharedSubId);
+    subscriber.setProperty(PROPERTY_SHARD, getShard(subId));
+    subscriber.setUnindexedProperty(PROPERTY_EXPIRES_AT, expiresAt);
+    return subscriber;
+  }
+
+  /**
+   * Moves devices of shared subscriptions and of topics to other subscription ids, in batches, as
+   * when the registration id of a device is replaced by its canonical registration id. The new
+   * subscribers keep the shared subscription and the expiration time of the ones they replace.
+   *
+   * @param newSubIds map from subscription ids of devices to the subscription ids they are moved to
+   * @return the subscription ids that are not part of a shared subscription, which are
+   *         subscriptions of their own and are not moved
+   */
+  List<String> moveSubscribers(Map<String, String> newSubIds) {
+    List<String> unsharedSubIds = new ArrayList<String>();
+    List<Key> keys = new ArrayList<Key>();
+    for (String subId : newSubIds.keySet()) {
+      keys.add(KeyFactory.createKey(SUBSCRIBER_KIND, subId));
+    }
+
+    for (int from = 0; from < keys.size(); from += BATCH_PUT_SIZE) {
+      List<Key> batch = keys.subList(from, Math.min(keys.size(), from + BATCH_PUT_SIZE));
+      Map<Key, Entity> subscribers = datastore.get(batch);
+      List<Entity> movedSubscribers = new ArrayList<Entity>();
+      for (Key key : batch) {
+        Entity subscriber = subscribers.get(key);
+        if (subscriber == null) {
+          unsharedSubIds.add(key.getName());
+          continue;
+        }
+        movedSubscribers.add(createSubscriber(newSubIds.get(key.getName()),
+            (String) subscriber.getProperty(PROPERTY_SHARED_SUBSCRIPTION_ID),
+            (Date) subscriber.getProperty(PROPERTY_EXPIRES_AT)));
+      }
+
+      // write the new subscribers before deleting the old ones, so that none of them is lost
+      if (!movedSubscribers.isEmpty()) {
+        markShards(movedSubscribers);
+        datastore.put(movedSubscribers);
+        datastore.delete(subscribers.keySet());
+      }
+    }
+
+    return unsharedSubIds;
+  }
+
+  /**
+   * Removes the devices with the provided subscription ids from their shared subscriptions, in
+   * batches.
+   *
+   * @param subIds subscription ids of devices
+   * @return the subscription ids that are not part of a shared subscription, which are
+   *         subscriptions of their own
+   */
+  List<String> removeSubscribers(Collection<String> subIds) {
+    List<String> unsharedSubIds = new ArrayList<String>();
+    Set<String> sharedSubIds = new HashSet<String>();
+    List<Key> keys = new ArrayList<Key>();
+    for (String subId : subIds) {
+      keys.add(KeyFactory.createKey(SUBSCRIBER_KIND, subId));
+    }
+
+    for (int from = 0; from < keys.size(); from += BATCH_GET_SIZE) {
+      List<Key> batch = keys.subList(from, Math.min(keys.size(), from + BATCH_GET_SIZE));
+      Map<Key, Entity> subscribers = datastore.get(batch);
+      if (!subscribers.isEmpty()) {
+        datastore.delete(subscribers.keySet());
+      }
+      for (Key key : batch) {
+        Entity subscriber = subscribers.get(key);
+        if (subscriber == null) {
+          unsharedSubIds.add(key.getName());
+        } else {
+          sharedSubIds.add((String) subscriber.getProperty(PROPERTY_SHARED_SUBSCRIPTION_ID));
+        }
+      }
+    }
+    enqueueRemovalCheck(sharedSubIds);
+
+    return unsharedSubIds;
+  }
+
+  /**
+   * Enqueues a task that unsubscribes the shared subscriptions that have no subscribers any more,
+   * after a delay that makes the removal of their subscribers visible to queries. Topics are not
+   * subscribed with the matcher, and are not checked.
+   *
+   * @param sharedSubIds ids of shared subscriptions or of topics that subscribers were removed from
+   */
+  void enqueueRemovalCheck(Collection<String> sharedSubIds) {
+    List<String> checkedSubIds = new ArrayList<String>();
+    for (String sharedSubId : sharedSubIds) {
+      if (isSharedSubscriptionId(sharedSubId)) {
+        checkedSubIds.add(sharedSubId);
+      }
+    }
+    if (checkedSubIds.isEmpty()) {
+      return;
+    }
+    QueueFactory.getQueue("subscription-removal").add(TaskOptions.Builder
+        .withMethod(TaskOptions.Method.POST)
+        .url("/admin/push/devicesubscription/delete")
+        .param("sharedSubIds", new Gson().toJson(checkedSubIds))
+        .param("type", SubscriptionUtility.REQUEST_TYPE_SHARED_SUB)
+        .countdownMillis(REMOVAL_CHECK_DELAY_SEC * 1000L));
+  }
+
+  /**
+   * Unsubscribes the shared subscriptions that have no subscribers from the matcher. The renewal
+   * flag of a shared subscription is removed after it is unsubscribed, so that the next device
+   * that subscribes to it subscribes it again, and the check is enqueued again for the devices
+   * that subscribed before the flag was removed. A shared subscription that has subscribers and
+   * no renewal flag, as after an unsubscription that missed some of them, is subscribed again
+   * with its stored query. Its stored query is removed once it is found without subscribers after
+   * it has been unsubscribed.
+   *
+   * @param sharedSubIds ids of shared subscriptions
+   */
+  void removeUnused(Collection<String> sharedSubIds) {
+    List<String> unsubscribedSubIds = new ArrayList<String>();
+    for (String sharedSubId : sharedSubIds) {
+      Key key = KeyFactory.createKey(SUBSCRIPTION_KIND, sharedSubId);
+      if (!datastore.prepare(createSubscriberQuery(sharedSubId).setKeysOnly())
+          .asList(FetchOptions.Builder.withLimit(1)).isEmpty()) {
+        resubscribe(key);
+        continue;
+      }
+      Entity subscription = datastore.get(Arrays.asList(key)).get(key);
+      if (subscription != null && subscription.hasProperty(PROPERTY_UNSUBSCRIBED_AT)) {
+        datastore.delete(key);
+        continue;
+      }
+
+      try {
+        matcher.unsubscribe(sharedSubId);
+        log.info("SharedSubscriptions: unsubscribed " + sharedSubId + " without subscribers");
+      } catch (IllegalArgumentException e) {
+        log.info("SharedSubscriptions: " + sharedSubId + " is not subscribed: " + e.getMessage());
+      }
+      if (subscription != null) {
+        subscription.setUnindexedProperty(PROPERTY_UNSUBSCRIBED_AT, new Date());
+        datastore.put(subscription);
+        unsubscribedSubIds.add(sharedSubId);
+      }
+      memcache.delete(MEMCACHE_KEY_PREFIX_RENEWED + sharedSubId);
+    }
+    enqueueRemovalCheck(unsubscribedSubIds);
+  }
+
+  // subscribes a shared subscription that has subscribers again with its stored query, unless it
+  // has been renewed since it was last unsubscribed
+  private void resubscribe(Key key) {
+    String sharedSubId = key.getName();
+    if (!matcher.isLocal() && memcache.contains(MEMCACHE_KEY_PREFIX_RENEWED + sharedSubId)) {
+      return;
+    }
+    Entity subscription = datastore.get(Arrays.asList(key)).get(key);
+    if (subscription == null) {
+      // subscribed before queries were stored, it is subscribed again by its next device
+      return;
+    }
+    QueryDto queryDto = gson.fromJson(((Text) subscription.getProperty(PROPERTY_QUERY))
+        .getValue(), QueryDto.class);
+    renew(sharedSubId, queryDto,
+        ((Number) subscription.getProperty(PROPERTY_DURATION_SEC)).intValue());
+  }
+
+  // deserializes filter values with the types that Cloud Endpoints gives them, i.e. integers as
+  // Integer or Long and other numbers as Double, where Gson reads all the numbers as Double
+  private static class FilterDeserializer implements JsonDeserializer<FilterDto> {
+
+    private static final Type SUBFILTERS_TYPE = new TypeToken<List<FilterDto>>() {}.getType();
+
+    @Override
+    public FilterDto deserialize(JsonElement json, Type typeOfT,
+        JsonDeserializationContext context) {
+      JsonObject o = json.getAsJsonObject();
+      FilterDto filter = new FilterDto();
+      if (o.has("operator")) {
+        filter.setOperator(context.<FilterDto.Op>deserialize(o.get("operator"),
+            FilterDto.Op.class));
+      }
+      if (o.has("values")) {
+        List<Object> values = new ArrayList<Object>();
+        for (JsonElement v : o.getAsJsonArray("values")) {
+          values.add(deserializeValue(v, context));
+        }
+        filter.setValues(values);
+      }
+      if (o.has("subfilters")) {
+        filter.setSubfilters(context.<List<FilterDto>>deserialize(o.get("subfilters"),
+            SUBFILTERS_TYPE));
+      }
+      return filter;
+    }
+
+    private Object deserializeValue(JsonElement v, JsonDeserializationContext context) {
+      if (!v.isJsonPrimitive() || !v.getAsJsonPrimitive().isNumber()) {
+        return context.deserialize(v, Object.class);
+      }
+      JsonPrimitive p = v.getAsJsonPrimitive();
+      String s = p.getAsString();
+      if (s.indexOf('.') >= 0 || s.indexOf('e') >= 0 || s.indexOf('E') >= 0) {
+        return p.getAsDouble();
+      }
+      long l = p.getAsLong();
+      if (l == (int) l) {
+        return Integer.valueOf((int) l);
+      }
+      return Long.valueOf(l);
+    }
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.spi;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.cloud.backend.config.StringUtility;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * HttpServlet for delivering a match of a shared subscription to its subscribers.
+ *
+ * {@link #fanOut(String)} delivers a match of a shared subscription with a few subscribers right
+ * away. For more subscribers it enqueues one task per shard that has subscribers, see
+ * {@link SharedSubscriptions}, for this servlet, that is intended to be called by Push Task
+ * Queue. Each task reads a page of subscribers of its shard, enqueues a task for the next page,
+ * and hands the subscription ids of the subscribers to
+ * {@link ProspectiveSearchServlet#deliverMatches(java.util.Collection)} as if they had been matched
+ * by Prospective Search API. Expired subscribers are removed, with their subscription entities,
+ * see {@link DeviceSubscription}.
+ */
+public class SubscriptionFanoutServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+  private static final Logger log = Logger.getLogger(SubscriptionFanoutServlet.class.getName());
+  private static final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+  private static final int SUBSCRIBERS_PER_TASK = 1000;
+
+  // a shared subscription with up to this number of subscribers is delivered without tasks
+  private static final int INLINE_SUBSCRIBERS = 20;
+
+  /**
+   * Delivers a match of a shared subscription. The subscribers are delivered to right away if
+   * there are only a few of them, otherwise one task is enqueued per shard that has subscribers.
+   * A shared subscription without subscribers is checked for removal.
+   *
+   * @param sharedSubId id of the matched shared subscription
+   */
+  static void fanOut(String sharedSubId) {
+    List<Entity> subscribers = datastore.prepare(
+        SharedSubscriptions.createSubscriberQuery(sharedSubId)).asList(
+        FetchOptions.Builder.withLimit(INLINE_SUBSCRIBERS + 1));
+    if (subscribers.isEmpty()) {
+      SharedSubscriptions.getInstance().enqueueRemovalCheck(Arrays.asList(sharedSubId));
+      return;
+    }
+    if (subscribers.size() <= INLINE_SUBSCRIBERS) {
+      deliver(sharedSubId, subscribers);
+      log.info("SubscriptionFanoutServlet: " + sharedSubId + ": delivered to "
+          + subscribers.size() + " subscribers without tasks");
+      return;
+    }
+
+    List<TaskOptions> tasks = new ArrayList<TaskOptions>();
+    for (int shard : SharedSubscriptions.getInstance().getMarkedShards(sharedSubId)) {
+      tasks.add(createTask(sharedSubId, shard, null));
+    }
+    if (!tasks.isEmpty()) {
+      QueueFactory.getQueue("subscription-fanout").add(tasks);
+    }
+  }
+
+  private static TaskOptions createTask(String sharedSubId, int shard, Cursor cursor) {
+    TaskOptions task = TaskOptions.Builder.withMethod(TaskOptions.Method.POST)
+        .url("/admin/push/subscription/fanout")
+        .param("sharedSubId", sharedSubId)
+        .param("shard", Integer.toString(shard));
+    if (cursor != null) {
+      task.param("cursor", cursor.toWebSafeString());
+    }
+    return task;
+  }
+
+  /**
+   * Handles the POST request from Task Queue
+   */
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    String sharedSubId = req.getParameter("sharedSubId");
+    String shardParameter = req.getParameter("shard");
+    if (StringUtility.isNullOrEmpty(sharedSubId) || StringUtility.isNullOrEmpty(shardParameter)) {
+      log.warning("Missing 'sharedSubId' or 'shard' argument on task queue request. "
+          + "This indicates a bug.");
+      return;
+    }
+    int shard = Integer.parseInt(shardParameter);
+
+    Query query = SharedSubscriptions.createShardQuery(sharedSubId, shard);
+    FetchOptions fetchOptions = FetchOptions.Builder.withLimit(SUBSCRIBERS_PER_TASK)
+        .prefetchSize(SUBSCRIBERS_PER_TASK).chunkSize(SUBSCRIBERS_PER_TASK);
+    String cursor = req.getParameter("cursor");
+    if (!StringUtility.isNullOrEmpty(cursor)) {
+      fetchOptions.startCursor(Cursor.fromWebSafeString(cursor));
+    }
+    QueryResultList<Entity> subscribers = datastore.prepare(query).asQueryResultList(fetchOptions);
+
+    // the next page is read by another task, while this one delivers. The task is named after
+    // this one, so that it is not enqueued twice if this task is retried.
+    if (subscribers.size() == SUBSCRIBERS_PER_TASK) {
+      TaskOptions next = createTask(sharedSubId, shard, subscribers.getCursor());
+      String taskName = req.getHeader("X-AppEngine-TaskName");
+      if (taskName != null) {
+        next.taskName(DigestUtils.sha1Hex(taskName));
+      }
+      try {
+        QueueFactory.getQueue("subscription-fanout").add(next);
+      } catch (TaskAlreadyExistsException e) {
+        log.info("SubscriptionFanoutServlet: next page of " + sharedSubId + " shard " + shard
+            + " is already enqueued");
+      }
+    }
+
+    int delivered = deliver(sharedSubId, subscribers);
+    log.info("SubscriptionFanoutServlet: " + sharedSubId + " shard " + shard + ": delivered to "
+        + delivered + " subscribers, removed " + (subscribers.size() - delivered)
+        + " expired subscribers");
+  }
+
+  // delivers to the subscribers that have not expired, removes the other ones, and returns the
+  // number of subscribers delivered to
+  private static int deliver(String sharedSubId, List<Entity> subscribers) {
+    Date now = new Date();
+    List<String> subIds = new ArrayList<String>();
+    List<Key> expiredKeys = new ArrayList<Key>();
+    List<String> expiredSubIds = new ArrayList<String>();
+    for (Entity subscriber : subscribers) {
+      Date expiresAt = (Date) subscriber.getProperty(SharedSubscriptions.PROPERTY_EXPIRES_AT);
+      if (expiresAt != null && expiresAt.before(now)) {
+        expiredKeys.add(subscriber.getKey());
+        expiredSubIds.add(subscriber.getKey().getName());
+      } else {
+        subIds.add(subscriber.getKey().getName());
+      }
+    }
+    if (!expiredKeys.isEmpty()) {
+      datastore.delete(expiredKeys);
+      new DeviceSubscription().deleteSubscriptionIds(expiredSubIds);
+      SharedSubscriptions.getInstance().enqueueRemovalCheck(Arrays.asList(sharedSubId));
+    }
+
+    if (!subIds.isEmpty()) {
+      ProspectiveSearchServlet.deliverMatches(subIds);
+    }
+    return subIds.size();
+  }
+}
@@ -13,16 +13,16 @@
  */
 package com.google.cloud.backend.spi;
 
-import com.google.appengine.api.prospectivesearch.ProspectiveSearchService;
-import com.google.appengine.api.prospectivesearch.ProspectiveSearchServiceFactory;
 import com.google.cloud.backend.config.BackendConfigManager;
 import com.google.cloud.backend.config.StringUtility;
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
 import java.util.TimeZone;
 import java.util.logging.Logger;
 
@@ -31,14 +31,15 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * HttpServlet for removing device and Prospective Search API subscription entities.
+ * HttpServlet for removing device and Prospective Search API subscription entities, and the
+ * shared subscriptions that have no subscribers any more.
  *
  * It is intended to be called by Push Task Queue, so the request is retried if it fails.
  */
 public class SubscriptionRemovalServlet extends HttpServlet {
   private static final long serialVersionUID = 1L;
-  private static final ProspectiveSearchService prosSearch = ProspectiveSearchServiceFactory
-      .getProspectiveSearchService();
+  private static final ContinuousQueryMatcher matcher = ContinuousQueryMatcherFactory
+      .getMatcher();
   private static final Logger log =
       Logger.getLogger(SubscriptionRemovalServlet.class.getName());
   private static final Gson gson = new Gson();
@@ -59,6 +60,8 @@ public class SubscriptionRemovalServlet extends HttpServlet {
       removeDeviceSubscription(req);
     } else if (SubscriptionUtility.REQUEST_TYPE_PSI_SUB.compareTo(type) == 0) {
       removePsiSubscription(req);
+    } else if (SubscriptionUtility.REQUEST_TYPE_SHARED_SUB.compareTo(type) == 0) {
+      removeUnusedSharedSubscription(req);
     } else {
       throw new IllegalArgumentException("Invalid value of parameter 'type'.");
     }
@@ -80,15 +83,38 @@ public class SubscriptionRemovalServlet extends HttpServlet {
       return;
     }
 
-    for (String subId : subIds) {
+    // The subscriptions of devices to shared subscriptions are removed from the shared
+    // subscriptions, the other ones are removed from Prospective Search API
+    List<String> unsharedSubIds =
+        SharedSubscriptions.getInstance().removeSubscribers(Arrays.asList(subIds));
+    for (String subId : unsharedSubIds) {
       try {
-        prosSearch.unsubscribe(QueryOperations.PROS_SEARCH_DEFAULT_TOPIC, subId);
+        matcher.unsubscribe(subId);
       } catch (IllegalArgumentException e) {
         log.info("Unsubscribe " + subId + " from PSI encounters error, " + e.getMessage());
       }
     }
   }
 
+  private void removeUnusedSharedSubscription(HttpServletRequest req) {
+    String sharedSubIdsParameter = req.getParameter("sharedSubIds");
+    if (StringUtility.isNullOrEmpty(sharedSubIdsParameter)) {
+      log.warning("Missing 'sharedSubIds' argument on task queue request. This indicates a bug");
+      return;
+    }
+
+    String[] sharedSubIds;
+    try {
+      sharedSubIds = gson.fromJson(sharedSubIdsParameter, String[].class);
+    } catch (JsonSyntaxException e) {
+      log.warning("Invalid format of 'sharedSubIds' argument on task queue request. " +
+          "This indicates a bug");
+      return;
+    }
+
+    SharedSubscriptions.getInstance().removeUnused(Arrays.asList(sharedSubIds));
+  }
+
   /**
    * Remove device subscription entities based on input parameters
    * @param req Http request contains parameters 'cursor' and 'timeStamp'. 'Cursor'
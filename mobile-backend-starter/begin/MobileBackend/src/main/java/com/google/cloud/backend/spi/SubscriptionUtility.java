@@ -13,16 +13,20 @@
  */
 package com.google.cloud.backend.spi;
 
-import com.google.appengine.api.prospectivesearch.ProspectiveSearchService;
-import com.google.appengine.api.prospectivesearch.ProspectiveSearchServiceFactory;
+import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.taskqueue.Queue;
 import com.google.appengine.api.taskqueue.QueueFactory;
 import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.cloud.backend.config.StringUtility;
 import com.google.gson.Gson;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
 
@@ -34,15 +38,17 @@ public class SubscriptionUtility {
 
   protected static final String IOS_DEVICE_PREFIX = "ios_";
   protected static final String GCM_KEY_SUBID = "subId";
+  protected static final String GCM_KEY_QUERY_IDS = "queryIds";
   protected static final String REQUEST_TYPE_DEVICE_SUB = "deviceSubscriptionRequest";
   protected static final String REQUEST_TYPE_PSI_SUB = "PSISubscriptionRequest";
+  protected static final String REQUEST_TYPE_SHARED_SUB = "sharedSubscriptionRequest";
 
   /**
    * A key word to indicate "query" type in Prospective Search API subscription id.
    */
   public static final String GCM_TYPEID_QUERY = "query";
-  private static final ProspectiveSearchService prosSearch = ProspectiveSearchServiceFactory
-      .getProspectiveSearchService();
+  private static final ContinuousQueryMatcher matcher = ContinuousQueryMatcherFactory
+      .getMatcher();
   private static final Logger log = Logger.getLogger(SubscriptionUtility.class.getName());
 
   /**
@@ -82,6 +88,20 @@ public class SubscriptionUtility {
     return tokens[0].replaceFirst(IOS_DEVICE_PREFIX, "");
   }
 
+  /**
+   * Extracts the client query id from subscription id.
+   *
+   * @param subId Subscription id sent by client during query subscription
+   * @return Query id provided by the client
+   */
+  public static String extractQueryId(String subId) {
+    if (StringUtility.isNullOrEmpty(subId)) {
+      throw new IllegalArgumentException("subId cannot be null or empty");
+    }
+    String separator = ":" + GCM_TYPEID_QUERY + ":";
+    return subId.substring(subId.indexOf(separator) + separator.length());
+  }
+
   /**
    * Extracts device registration id from subscription id.
    *
@@ -115,22 +135,91 @@ public class SubscriptionUtility {
    */
   public static void clearSubscriptionAndDeviceEntity(List<String> deviceIds) {
     DeviceSubscription deviceSubscription = new DeviceSubscription();
+    clearSubscriptionAndDeviceEntity(deviceSubscription, deviceIds,
+        deviceSubscription.getAll(deviceIds).values(), false);
+  }
 
-    for (String deviceId : deviceIds) {
-      Set<String> subIds = deviceSubscription.getSubscriptionIds(deviceId);
+  /**
+   * Clears Prospective Search API subscription and device subscription entity for devices whose
+   * subscription entities have already been read.
+   *
+   * The device subscription entities are deleted from datastore and memcache in batches. If
+   * deferUnsubscribe is true, the Prospective Search API subscriptions are removed by tasks of
+   * the subscription-removal queue, each of them for a batch of subscriptions, rather than one
+   * by one by the caller. It is meant for removing many devices that are known to be invalid.
+   *
+   * @param deviceEntities Device subscription entities of the devices to be removed
+   * @param deferUnsubscribe true to remove the Prospective Search API subscriptions by tasks
+   */
+  public static void clearSubscriptionAndDeviceEntity(Collection<Entity> deviceEntities,
+      boolean deferUnsubscribe) {
+    List<String> deviceIds = new ArrayList<String>();
+    for (Entity deviceEntity : deviceEntities) {
+      deviceIds.add(deviceEntity.getKey().getName());
+    }
+    clearSubscriptionAndDeviceEntity(new DeviceSubscription(), deviceIds, deviceEntities,
+        deferUnsubscribe);
+  }
+
+  private static void clearSubscriptionAndDeviceEntity(DeviceSubscription deviceSubscription,
+      List<String> deviceIds, Collection<Entity> deviceEntities, boolean deferUnsubscribe) {
+    List<String> subIds =
+        new ArrayList<String>(deviceSubscription.getSubscriptionIds(deviceEntities));
 
-      // Delete all subscriptions for the device from Prospective Search API
-      for (String subId : subIds) {
-        try {
-          prosSearch.unsubscribe(QueryOperations.PROS_SEARCH_DEFAULT_TOPIC, subId);
-        } catch (IllegalArgumentException e) {
-          log.warning("Unsubscribe " + subId + " from PSI encounters error, " + e.getMessage());
-        }
+    // Remove devices from datastore
+    deviceSubscription.deleteAll(deviceIds, subIds);
+
+    // Delete all subscriptions for the devices from Prospective Search API
+    if (deferUnsubscribe) {
+      deviceSubscription.deletePsiSubscriptions(subIds);
+      return;
+    }
+    for (String subId : SharedSubscriptions.getInstance().removeSubscribers(subIds)) {
+      try {
+        matcher.unsubscribe(subId);
+      } catch (IllegalArgumentException e) {
+        log.warning("Unsubscribe " + subId + " from PSI encounters error, " + e.getMessage());
       }
+    }
+  }
+
+  /**
+   * Moves the subscriptions of devices to the canonical registration ids that GCM returned for
+   * them, and removes the devices.
+   *
+   * Subscriptions to shared subscriptions and to topics are moved with the device. A subscription
+   * of its own cannot be subscribed again without its query, so it stays with the device, which
+   * GCM still delivers to, until the device subscribes again with its canonical registration id.
+   * A device is only removed once all its subscriptions have been moved.
+   *
+   * @param canonicalRegIds map from registration id to canonical registration id
+   */
+  public static void replaceRegistrationIds(Map<String, String> canonicalRegIds) {
+    DeviceSubscription deviceSubscription = new DeviceSubscription();
+    Map<String, Entity> deviceEntities = deviceSubscription.getAll(canonicalRegIds.keySet());
+    if (deviceEntities.isEmpty()) {
+      return;
+    }
 
-      // Remove device from datastore
-      deviceSubscription.delete(deviceId);
+    Map<String, String> newSubIds = new HashMap<String, String>();
+    for (String subId : deviceSubscription.getSubscriptionIds(deviceEntities.values())) {
+      newSubIds.put(subId, constructSubId(canonicalRegIds.get(extractRegId(subId)),
+          extractQueryId(subId)));
+    }
+    Set<String> keptDeviceIds = new HashSet<String>();
+    for (String subId : SharedSubscriptions.getInstance().moveSubscribers(newSubIds)) {
+      newSubIds.remove(subId);
+      keptDeviceIds.add(extractRegId(subId));
     }
+    deviceSubscription.createMovedSubscriptions(deviceEntities, canonicalRegIds,
+        newSubIds.values());
+
+    List<String> removedDeviceIds = new ArrayList<String>(deviceEntities.keySet());
+    removedDeviceIds.removeAll(keptDeviceIds);
+    deviceSubscription.deleteAll(removedDeviceIds, newSubIds.keySet());
+    log.info("SubscriptionUtility: moved " + newSubIds.size() + " subscriptions of "
+        + deviceEntities.size() + " devices to canonical registration ids, kept "
+        + keptDeviceIds.size() + " devices with subscriptions of their own");
   }
 
   /**
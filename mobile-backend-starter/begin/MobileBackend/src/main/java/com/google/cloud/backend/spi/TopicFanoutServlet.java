@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.spi;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.cloud.backend.beans.EntityDto;
+import com.google.cloud.backend.beans.FilterDto;
+import com.google.cloud.backend.beans.QueryDto;
+import com.google.cloud.backend.config.BackendConfigManager;
+import com.google.cloud.backend.config.StringUtility;
+import com.google.cloud.backend.pushnotification.Utility;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * HttpServlet for delivering Cloud Messages to the devices subscribed to their topic.
+ *
+ * A continuous query for the Cloud Messages of a topic, as created by CloudBackendMessaging, is
+ * not subscribed with Prospective Search API. The device is added to the subscribers of the
+ * topic instead, which are stored in shards like the subscribers of shared subscriptions, see
+ * {@link SharedSubscriptions}. When a Cloud Message is saved, {@link #enqueuePublish(Entity)}
+ * enqueues one task per shard that has subscribers. Each task reads a page of subscriber keys of
+ * its shard, enqueues a task for the next page, and sends the message to the devices of the page
+ * with GCM multicast requests and APNS alerts.
+ *
+ * The number of devices reached so far and the throughput of each publish are counted in
+ * Memcache and logged by every task.
+ */
+public class TopicFanoutServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+  private static final Logger log = Logger.getLogger(TopicFanoutServlet.class.getName());
+  private static final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+  private static final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+  private static final BackendConfigManager backendConfigManager = new BackendConfigManager();
+  private static final ContinuousQueryMatcher matcher = ContinuousQueryMatcherFactory
+      .getMatcher();
+
+  /**
+   * Kind name of Cloud Messages.
+   */
+  static final String KIND_NAME_CLOUD_MESSAGES = "_CloudMessages";
+
+  /**
+   * Property name of Cloud Messages that holds the topic id.
+   */
+  static final String PROP_TOPIC_ID = "topicId";
+
+  private static final String TOPIC_ID_PREFIX = "_topic:";
+
+  private static final int SUBSCRIBERS_PER_TASK = 1000;
+
+  private static final int IOS_DEVICES_PER_ALERT = 500;
+
+  private static final String MEMCACHE_KEY_PREFIX_PUBLISH = "_TopicPublish:";
+
+  private static final Expiration PUBLISH_STATS_EXPIRATION = Expiration.byDeltaSeconds(
+      24 * 60 * 60);
+
+  /**
+   * Returns the topic id of a continuous query for the Cloud Messages of a topic, or null if the
+   * query is another query. Such a query has an equality filter on the topic id, optionally
+   * combined with a lower bound of the creation time, which all the future messages satisfy. A
+   * query with a subscription duration is not a topic subscription.
+   */
+  static String getTopicId(QueryDto queryDto) {
+    if (!KIND_NAME_CLOUD_MESSAGES.equals(queryDto.getKindName())
+        || queryDto.getFilterDto() == null) {
+      return null;
+    }
+    Integer duration = queryDto.getSubscriptionDurationSec();
+    if (duration != null && duration != 0) {
+      return null;
+    }
+
+    FilterDto filter = queryDto.getFilterDto();
+    if (filter.getOperator() == FilterDto.Op.EQ) {
+      return getTopicIdOperand(filter);
+    }
+    if (filter.getOperator() != FilterDto.Op.AND || filter.getSubfilters() == null) {
+      return null;
+    }
+    String topicId = null;
+    for (FilterDto subfilter : filter.getSubfilters()) {
+      FilterDto.Op op = subfilter.getOperator();
+      if (op == FilterDto.Op.EQ && topicId == null) {
+        topicId = getTopicIdOperand(subfilter);
+        if (topicId == null) {
+          return null;
+        }
+      } else if ((op == FilterDto.Op.GT || op == FilterDto.Op.GE)
+          && subfilter.getValues() != null && !subfilter.getValues().isEmpty()
+          && EntityDto.PROP_CREATED_AT.equals(subfilter.getValues().get(0))) {
+        continue;
+      } else {
+        return null;
+      }
+    }
+    return topicId;
+  }
+
+  private static String getTopicIdOperand(FilterDto filter) {
+    List<Object> values = filter.getValues();
+    if (values == null || values.size() != 2 || !PROP_TOPIC_ID.equals(values.get(0))
+        || !(values.get(1) instanceof String)) {
+      return null;
+    }
+    return (String) values.get(1);
+  }
+
+  /**
+   * Adds a device to the subscribers of a topic. A device subscribed by a previous version has a
+   * Prospective Search API subscription of its own for the topic, which is removed.
+   *
+   * @param subId subscription id of the device, "<regId>:query:<topicId>"
+   * @param topicId the topic id
+   */
+  static void subscribe(String subId, String topicId) {
+    SharedSubscriptions.getInstance().addSubscriber(subId, TOPIC_ID_PREFIX + topicId, null);
+    try {
+      matcher.unsubscribe(subId);
+      log.info("TopicFanoutServlet: unsubscribed " + subId + " of its own");
+    } catch (IllegalArgumentException e) {
+      // the device is not subscribed on its own
+    }
+  }
+
+  /**
+   * Enqueues the tasks that deliver a saved Cloud Message to the subscribers of its topic, one
+   * per shard that has subscribers. The tasks are named after the message, so that a message is
+   * published once even if it is matched again.
+   *
+   * @param message the saved Cloud Message
+   */
+  static void enqueuePublish(Entity message) {
+    Object topicId = message.getProperty(PROP_TOPIC_ID);
+    if (!(topicId instanceof String) || !backendConfigManager.isPushEnabled()) {
+      return;
+    }
+
+    List<Integer> shards = SharedSubscriptions.getInstance().getMarkedShards(
+        TOPIC_ID_PREFIX + topicId);
+    if (shards.isEmpty()) {
+      return;
+    }
+
+    String publishId = DigestUtils.sha1Hex(KeyFactory.keyToString(message.getKey()));
+    long publishedAt = System.currentTimeMillis();
+    Map<String, Long> counters = new HashMap<String, Long>();
+    counters.put(MEMCACHE_KEY_PREFIX_PUBLISH + publishId + ":devices", 0L);
+    counters.put(MEMCACHE_KEY_PREFIX_PUBLISH + publishId + ":shards", 0L);
+    memcache.putAll(counters, PUBLISH_STATS_EXPIRATION, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+
+    List<TaskOptions> tasks = new ArrayList<TaskOptions>();
+    for (int shard : shards) {
+      tasks.add(createTask((String) topicId, publishId, publishedAt, shard, shards.size(), null)
+          .taskName("publish-" + publishId + "-" + shard));
+    }
+    try {
+      QueueFactory.getQueue("topic-fanout").add(tasks);
+    } catch (TaskAlreadyExistsException e) {
+      log.info("TopicFanoutServlet: message " + message.getKey() + " is already published");
+    }
+  }
+
+  private static TaskOptions createTask(String topicId, String publishId, long publishedAt,
+      int shard, int shardCount, Cursor cursor) {
+    TaskOptions task = TaskOptions.Builder.withMethod(TaskOptions.Method.POST)
+        .url("/admin/push/topic/fanout")
+        .param("topicId", topicId)
+        .param("publishId", publishId)
+        .param("publishedAt", Long.toString(publishedAt))
+        .param("shard", Integer.toString(shard))
+        .param("shardCount", Integer.toString(shardCount));
+    if (cursor != null) {
+      task.param("cursor", cursor.toWebSafeString());
+    }
+    return task;
+  }
+
+  /**
+   * Handles the POST request from Task Queue
+   */
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    String topicId = req.getParameter("topicId");
+    String publishId = req.getParameter("publishId");
+    String publishedAtParameter = req.getParameter("publishedAt");
+    String shardParameter = req.getParameter("shard");
+    String shardCountParameter = req.getParameter("shardCount");
+    if (StringUtility.isNullOrEmpty(topicId) || StringUtility.isNullOrEmpty(publishId)
+        || StringUtility.isNullOrEmpty(publishedAtParameter)
+        || StringUtility.isNullOrEmpty(shardParameter)
+        || StringUtility.isNullOrEmpty(shardCountParameter)) {
+      log.warning("Missing argument on task queue request. This indicates a bug.");
+      return;
+    }
+    long publishedAt = Long.parseLong(publishedAtParameter);
+    int shard = Integer.parseInt(shardParameter);
+    int shardCount = Integer.parseInt(shardCountParameter);
+
+    Query query = SharedSubscriptions.createShardQuery(TOPIC_ID_PREFIX + topicId, shard)
+        .setKeysOnly();
+    FetchOptions fetchOptions = FetchOptions.Builder.withLimit(SUBSCRIBERS_PER_TASK)
+        .prefetchSize(SUBSCRIBERS_PER_TASK).chunkSize(SUBSCRIBERS_PER_TASK);
+    String cursor = req.getParameter("cursor");
+    if (!StringUtility.isNullOrEmpty(cursor)) {
+      fetchOptions.startCursor(Cursor.fromWebSafeString(cursor));
+    }
+    QueryResultList<Entity> subscribers = datastore.prepare(query).asQueryResultList(fetchOptions);
+
+    // the next page is read by another task, while this one sends. The task is named after this
+    // one, so that it is not enqueued twice if this task is retried.
+    boolean lastPage = subscribers.size() < SUBSCRIBERS_PER_TASK;
+    String taskName = req.getHeader("X-AppEngine-TaskName");
+    if (!lastPage) {
+      TaskOptions next = createTask(topicId, publishId, publishedAt, shard, shardCount,
+          subscribers.getCursor());
+      if (taskName != null) {
+        next.taskName(DigestUtils.sha1Hex(taskName));
+      }
+      try {
+        QueueFactory.getQueue("topic-fanout").add(next);
+      } catch (TaskAlreadyExistsException e) {
+        log.info("TopicFanoutServlet: next page of publish " + publishId + " shard " + shard
+            + " is already enqueued");
+      }
+    }
+
+    int deviceCount = send(topicId, subscribers);
+    recordProgress(topicId, publishId, publishedAt, shard, shardCount, deviceCount, lastPage,
+        taskName);
+  }
+
+  // sends the message to the devices of the subscribers, and returns the number of devices it is
+  // sent to
+  private int send(String topicId, List<Entity> subscribers) {
+    // Devices that subscribed before the last deletion of all subscriptions are removed rather
+    // than sent to, as by ProspectiveSearchServlet. Their entities are read with one batch get.
+    Date lastDeleteAll = backendConfigManager.getLastSubscriptionDeleteAllTime();
+    Map<String, Entity> devices = null;
+    if (lastDeleteAll != null) {
+      List<String> deviceIds = new ArrayList<String>();
+      for (Entity subscriber : subscribers) {
+        deviceIds.add(SubscriptionUtility.extractRegId(subscriber.getKey().getName()));
+      }
+      devices = new DeviceSubscription().getAll(deviceIds);
+    }
+
+    List<String> androidRegIds = new ArrayList<String>();
+    List<String> iosDeviceTokens = new ArrayList<String>();
+    Map<String, Entity> inactiveDevices = new HashMap<String, Entity>();
+    List<String> orphanSubIds = new ArrayList<String>();
+    for (Entity subscriber : subscribers) {
+      String subId = subscriber.getKey().getName();
+      if (devices != null) {
+        String deviceId = SubscriptionUtility.extractRegId(subId);
+        Entity device = devices.get(deviceId);
+        if (device == null) {
+          orphanSubIds.add(subId);
+          continue;
+        }
+        Date timeStamp = (Date) device.getProperty(DeviceSubscription.PROPERTY_TIMESTAMP);
+        if (timeStamp == null || !timeStamp.after(lastDeleteAll)) {
+          inactiveDevices.put(deviceId, device);
+          continue;
+        }
+      }
+      if (SubscriptionUtility.getMobileType(subId) == SubscriptionUtility.MobileType.IOS) {
+        iosDeviceTokens.add(SubscriptionUtility.extractRegId(subId));
+      } else {
+        androidRegIds.add(SubscriptionUtility.extractRegId(subId));
+      }
+    }
+
+    if (!inactiveDevices.isEmpty()) {
+      SubscriptionUtility.clearSubscriptionAndDeviceEntity(inactiveDevices.values(), true);
+    }
+    if (!orphanSubIds.isEmpty()) {
+      SharedSubscriptions.getInstance().removeSubscribers(orphanSubIds);
+    }
+
+    if (!androidRegIds.isEmpty()) {
+      GcmDeliveryServlet.enqueueGcmDelivery(Arrays.asList(topicId), androidRegIds);
+    }
+    // the alert carries the topic id in the format of a subscription id, without the device
+    String alert = ":" + SubscriptionUtility.GCM_TYPEID_QUERY + ":" + topicId;
+    for (int from = 0; from < iosDeviceTokens.size(); from += IOS_DEVICES_PER_ALERT) {
+      Utility.enqueuePushAlert(alert, iosDeviceTokens.subList(from,
+          Math.min(iosDeviceTokens.size(), from + IOS_DEVICES_PER_ALERT)));
+    }
+    return androidRegIds.size() + iosDeviceTokens.size();
+  }
+
+  // counts the devices of a page, and the shard if it is done. A retried task is counted once, as
+  // the first run marks its task name before counting.
+  private void recordProgress(String topicId, String publishId, long publishedAt, int shard,
+      int shardCount, int deviceCount, boolean lastPage, String taskName) {
+    if (taskName != null && !memcache.put(MEMCACHE_KEY_PREFIX_PUBLISH + publishId + ":task:"
+        + taskName, Boolean.TRUE, PUBLISH_STATS_EXPIRATION, SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+      log.info("TopicFanoutServlet: publish " + publishId + " to topic " + topicId + " shard "
+          + shard + ": sent to " + deviceCount + " devices again by a retried task");
+      return;
+    }
+    Long devices = memcache.increment(MEMCACHE_KEY_PREFIX_PUBLISH + publishId + ":devices",
+        deviceCount, 0L);
+    Long shards = lastPage
+        ? memcache.increment(MEMCACHE_KEY_PREFIX_PUBLISH + publishId + ":shards", 1, 0L) : null;
+    long elapsedMillis = Math.max(1, System.currentTimeMillis() - publishedAt);
+    String progress = devices == null ? "" : devices + " devices in " + elapsedMillis + " ms ("
+        + (devices * 1000 / elapsedMillis) + " devices/s), ";
+    String shardsDone = shards == null ? "" : shards + "/" + shardCount + " shards done";
+
+    if (shards != null && shards == shardCount) {
+      log.info("TopicFanoutServlet: publish " + publishId + " to topic " + topicId
+          + " finished: " + progress + shardsDone);
+    } else {
+      log.info("TopicFanoutServlet: publish " + publishId + " to topic " + topicId + " shard "
+          + shard + ": sent to " + deviceCount + " devices, " + progress + shardsDone);
+    }
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.spi;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.cloud.backend.beans.EntityDto;
+import com.google.cloud.backend.beans.FilterDto;
+import com.google.cloud.backend.config.BackendConfigManager;
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet class for handling warmup requests.
+ *
+ * App Engine sends a warmup request to a new instance before any user request, so everything that
+ * is initialized lazily on the first request is initialized here instead: the singletons, the
+ * backend configuration snapshot, Gson, the filter translation, the JavaPNS and GCM classes and
+ * the Endpoints classes. The time taken by each stage is logged. A failed stage is logged and does
+ * not prevent the other stages from running.
+ */
+@SuppressWarnings("serial")
+public class WarmupServlet extends HttpServlet {
+
+  private static final Logger log = Logger.getLogger(WarmupServlet.class.getName());
+
+  // classes whose static initialization is expensive, loaded by name because some of them are not
+  // visible from this package
+  private static final String[] CLASSES_TO_LOAD = {
+      "com.google.cloud.backend.spi.EndpointV1",
+      "com.google.cloud.backend.spi.BlobEndpoint",
+      "com.google.cloud.backend.spi.ProspectiveSearchServlet",
+      "com.google.cloud.backend.pushnotification.Sender",
+      "com.google.cloud.backend.pushnotification.Worker",
+      "javapns.notification.PushNotificationManager",
+      "javapns.notification.PushNotificationPayload",
+      "com.google.android.gcm.server.Sender",
+  };
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    long startTime = System.currentTimeMillis();
+
+    runStage("singletons", new Stage() {
+      @Override
+      void run() {
+        CrudOperations.getInstance();
+        QueryOperations.getInstance();
+        SecurityChecker.getInstance();
+        MatchingStage.getInstance();
+      }
+    });
+
+    // loads the configuration snapshot, which also initializes the Datastore and Memcache clients
+    runStage("config", new Stage() {
+      @Override
+      void run() {
+        new BackendConfigManager().getAuthMode();
+      }
+    });
+
+    runStage("gson", new Stage() {
+      @Override
+      void run() {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("string", "warmup");
+        values.put("number", 1);
+        values.put("list", Arrays.asList("a", "b"));
+        EntityDto cd = new EntityDto();
+        cd.setKindName("Warmup");
+        cd.setProperties(values);
+        Entity e = new Entity("Warmup", "warmup");
+        cd.copyPropValuesToEntity(e);
+        e.setProperty(EntityDto.PROP_CREATED_AT, new Date());
+        e.setProperty(EntityDto.PROP_UPDATED_AT, new Date());
+        new Gson().toJson(EntityDto.createFromEntity(e));
+      }
+    });
+
+    runStage("filters", new Stage() {
+      @Override
+      void run() {
+        FilterDto fd = new FilterDto();
+        fd.setOperator(FilterDto.Op.EQ);
+        fd.setValues(Arrays.<Object> asList("warmup", "2014-01-01T00:00:00Z"));
+        fd.compile();
+      }
+    });
+
+    runStage("classes", new Stage() {
+      @Override
+      void run() throws ClassNotFoundException {
+        ClassLoader cl = WarmupServlet.class.getClassLoader();
+        for (String className : CLASSES_TO_LOAD) {
+          Class.forName(className, true, cl);
+        }
+      }
+    });
+
+    log.info("WarmupServlet: warmup done in " + (System.currentTimeMillis() - startTime) + " ms");
+  }
+
+  private void runStage(String name, Stage stage) {
+    long startTime = System.currentTimeMillis();
+    try {
+      stage.run();
+    } catch (Exception e) {
+      log.log(Level.WARNING, "WarmupServlet: stage " + name + " failed", e);
+    } catch (LinkageError e) {
+      log.log(Level.WARNING, "WarmupServlet: stage " + name + " failed", e);
+    }
+    log.info("WarmupServlet: stage " + name + " took " + (System.currentTimeMillis() - startTime)
+        + " ms");
+  }
+
+  private abstract static class Stage {
+    abstract void run() throws Exception;
+  }
+}
@@ -28,7 +28,12 @@ import android.util.Log;
 import com.google.android.gms.gcm.GoogleCloudMessaging;
 import com.google.cloud.backend.core.Consts;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This class manages Google Cloud Messaging push notifications and CloudQuery
@@ -38,6 +43,8 @@ public class GCMIntentService extends IntentService {
 
     private static final String GCM_KEY_SUBID = "subId";
 
+    private static final String GCM_KEY_QUERY_IDS = "queryIds";
+
     private static final String GCM_TYPEID_QUERY = "query";
 
     private static final String PROPERTY_REG_ID = "registration_id";
@@ -71,12 +78,15 @@ public class GCMIntentService extends IntentService {
                 String[] tokens = subId.split(":");
                 String typeId = tokens[1];
 
-                // dispatch message
+                // dispatch message. A message coalesced by the backend carries all the
+                // query IDs that had matches, the subId only carries the first one.
                 if (GCM_TYPEID_QUERY.equals(typeId)) {
-                    Intent messageIntent = new Intent(BROADCAST_ON_MESSAGE);
-                    messageIntent.putExtras(intent);
-                    messageIntent.putExtra("token", tokens[2]);
-                    LocalBroadcastManager.getInstance(this).sendBroadcast(messageIntent);
+                    for (String queryId : getQueryIds(intent, tokens[2])) {
+                        Intent messageIntent = new Intent(BROADCAST_ON_MESSAGE);
+                        messageIntent.putExtras(intent);
+                        messageIntent.putExtra("token", queryId);
+                        LocalBroadcastManager.getInstance(this).sendBroadcast(messageIntent);
+                    }
                 }
             }
         }
@@ -84,6 +94,25 @@ public class GCMIntentService extends IntentService {
         GCMBroadcastReceiver.completeWakefulIntent(intent);
     }
 
+    private static List<String> getQueryIds(Intent intent, String subIdQueryId) {
+        List<String> queryIds = new ArrayList<String>();
+        String queryIdsJson = intent.getStringExtra(GCM_KEY_QUERY_IDS);
+        if (queryIdsJson != null) {
+            try {
+                JSONArray array = new JSONArray(queryIdsJson);
+                for (int i = 0; i < array.length(); i++) {
+                    queryIds.add(array.getString(i));
+                }
+                return queryIds;
+            } catch (JSONException e) {
+                Log.w(Consts.TAG, "getQueryIds: invalid query IDs: " + queryIdsJson);
+                queryIds.clear();
+            }
+        }
+        queryIds.add(subIdQueryId);
+        return queryIds;
+    }
+
     /**
      * Returns registration id associated with the specified {@link android.app.Application}
      * . This method will block the thread until regId will be available.
@@ -310,22 +310,76 @@ public class CloudBackend {
      * @throws java.io.IOException When the call had failed for any reason.
      */
     public List<CloudEntity> list(com.google.cloud.backend.core.CloudQuery query) throws IOException {
+        return getListOfEntityDto(executeList(query));
+    }
 
-        // execute the query
-        EntityListDto cbList;
+    /**
+     * Returns a {@link PageIterator} that executes the specified
+     * {@link CloudQuery} one page at a time. The page size is the limit of the
+     * query, capped by the backend at its maximum page size.
+     *
+     * @param query {@link CloudQuery} to execute. Its scope should be PAST.
+     * @return {@link PageIterator} positioned before the first page.
+     */
+    public PageIterator listPages(CloudQuery query) {
+        return new PageIterator(query);
+    }
+
+    private EntityListDto executeList(CloudQuery query) throws IOException {
         QueryDto cq = query.convertToQueryDto();
         Log.i(Consts.TAG, "list: executing query: " + cq);
-        cbList = getMBSEndpoint().endpointV1().list(cq).execute();
+        EntityListDto cbList = getMBSEndpoint().endpointV1().list(cq).execute();
         Log.i(Consts.TAG, "list: result: " + cbList.getEntries());
+        return cbList;
+    }
+
+    /**
+     * Iterates over the result of a query page by page, passing the cursor
+     * returned with each page to the request for the next one. All the methods
+     * work synchronously.
+     */
+    public class PageIterator {
+
+        private final CloudQuery query;
+
+        private boolean hasNext = true;
+
+        private PageIterator(CloudQuery query) {
+            this.query = new CloudQuery(query);
+        }
 
-        // convert the result to List
-        List<CloudEntity> coList = new LinkedList<CloudEntity>();
-        if (cbList.getEntries() != null) {
-            for (EntityDto cd : cbList.getEntries()) {
-                coList.add(CloudEntity.createCloudEntityFromEntityDto(cd));
+        /**
+         * Returns true if there may be more results to fetch.
+         */
+        public boolean hasNext() {
+            return hasNext;
+        }
+
+        /**
+         * Fetches the next page of the result.
+         *
+         * @return {@link java.util.List} of {@link CloudEntity} of the page,
+         * which is empty when there are no more results.
+         * @throws java.io.IOException When the call had failed for any reason.
+         */
+        public List<CloudEntity> next() throws IOException {
+            if (!hasNext) {
+                return new LinkedList<CloudEntity>();
             }
+            EntityListDto cbList = executeList(query);
+            query.setStartCursor(cbList.getEndCursor());
+            hasNext = cbList.getEndCursor() != null;
+            return getListOfEntityDto(cbList);
+        }
+
+        /**
+         * Returns the cursor where the next page starts, or null if there are
+         * no more results. It can be kept to resume the iteration later with
+         * {@link CloudQuery#setStartCursor(String)}.
+         */
+        public String getCursor() {
+            return query.getStartCursor();
         }
-        return coList;
     }
 
     public BlobAccess transformImage(ImageTransformationParam param) throws IOException {
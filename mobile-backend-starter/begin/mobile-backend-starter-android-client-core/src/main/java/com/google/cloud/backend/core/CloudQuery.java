@@ -19,6 +19,10 @@ import android.util.Base64;
 import com.google.cloud.backend.mobilebackend.model.QueryDto;
 import com.google.gson.Gson;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * A query object to execute it with {@link CloudBackend}. See
  * {@link CloudBackendTest#testList()} for detailed usage.
@@ -96,6 +100,11 @@ public class CloudQuery {
         ncq.setSortAscending(cq.getSortAscending());
         ncq.setSortedPropertyName(cq.getSortedPropertyName());
         ncq.setSubscriptionDurationSec(cq.getSubscriptionDurationSec());
+        ncq.setStartCursor(cq.getStartCursor());
+        if (cq.getProjectedPropertyNames() != null) {
+            ncq.setProjectedPropertyNames(
+                    new ArrayList<String>(cq.getProjectedPropertyNames()));
+        }
         return ncq;
     }
 
@@ -141,6 +150,54 @@ public class CloudQuery {
         return this;
     }
 
+    /**
+     * Sets the cursor where this query resumes. Use the cursor returned by
+     * {@link CloudBackend.PageIterator#getCursor()} to continue from a previous
+     * page, or null to start from the first result.
+     *
+     * @param cursor opaque cursor returned by the backend.
+     * @return {@link CloudQuery}
+     */
+    public CloudQuery setStartCursor(String cursor) {
+        this.queryDto.setStartCursor(cursor);
+        return this;
+    }
+
+    /**
+     * Returns the cursor where this query resumes, or null if it starts from
+     * the first result.
+     *
+     * @return
+     */
+    public String getStartCursor() {
+        return this.queryDto.getStartCursor();
+    }
+
+    /**
+     * Sets the names of the properties to return. The results will only
+     * contain these properties, which saves loading whole entities for list
+     * screens. The properties must be indexed (not List or Map values), and
+     * must not be used in an equality filter of this query.
+     *
+     * @param propertyNames names of the properties to return.
+     * @return {@link CloudQuery}
+     */
+    public CloudQuery setProjection(String... propertyNames) {
+        this.queryDto.setProjectedPropertyNames(
+                new ArrayList<String>(Arrays.asList(propertyNames)));
+        return this;
+    }
+
+    /**
+     * Returns the names of the properties returned by this query, or null if
+     * it returns whole entities.
+     *
+     * @return
+     */
+    public List<String> getProjection() {
+        return this.queryDto.getProjectedPropertyNames();
+    }
+
     /**
      * Creates a {@link QueryDto} for this CloudQuery.
      *